@@ -0,0 +1,90 @@
+package ru.valkerik.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.valkerik.TelegramGPTBotApp;
+import ru.valkerik.model.request.ChatRequest;
+import ru.valkerik.model.request.Message;
+import ru.valkerik.model.request.PromptMessages;
+import ru.valkerik.model.request.PromptPrefix;
+import ru.valkerik.model.response.ChatResponse;
+import ru.valkerik.utils.TokenCounter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+Сериализация запроса чата и разбор ответа общим ObjectMapper приложения. Запрос сериализуется в двух вариантах:
+с готовым JSON префикса (как его отправляет бот) и обычным списком тех же сообщений.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+
+    private static final String RESPONSE = "{\"id\":\"chatcmpl-7Ab1\",\"object\":\"chat.completion\",\"created\":1680000000,"
+            + "\"model\":\"gpt-3.5-turbo-0301\",\"usage\":{\"prompt_tokens\":812,\"completion_tokens\":164,\"total_tokens\":976},"
+            + "\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"" + "Это ответ помощника средней длины. ".repeat(20)
+            + "\"},\"finish_reason\":\"stop\",\"index\":0}]}";
+
+    private ObjectMapper mapper;
+    private ChatRequest prefixedRequest;
+    private ChatRequest plainRequest;
+    private byte[] response;
+
+    @Setup
+    public void setup() throws IOException {
+        mapper = new TelegramGPTBotApp().objectMapper();
+        TokenCounter counter = new TokenCounter("gpt-3.5-turbo");
+        List<Message> prefixMessages = new ArrayList<>();
+        prefixMessages.add(new Message().withRole("system").withContent("You are \"GPTbot\" a helpful assistant, you speak Russian. ".repeat(8)));
+        for (int i = 0; i < 4; i++) {
+            prefixMessages.add(new Message().withRole(i % 2 == 0 ? "user" : "assistant").withContent("Пример реплики номер " + i));
+        }
+        List<Message> tail = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            tail.add(new Message().withRole(i % 2 == 0 ? "user" : "assistant")
+                    .withContent("Сообщение разговора номер " + i + ". Немного текста, чтобы строка была похожа на настоящую реплику."));
+        }
+        PromptPrefix prefix = PromptPrefix.of(mapper, counter::count, prefixMessages);
+        prefixedRequest = request(new PromptMessages(prefix, tail));
+        List<Message> all = new ArrayList<>(prefixMessages);
+        all.addAll(tail);
+        plainRequest = request(all);
+        response = RESPONSE.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ChatRequest request(List<Message> messages) {
+        return new ChatRequest().withModel("gpt-3.5-turbo").withMaxTokens(500).withTemperature(0.7).withMessages(messages);
+    }
+
+    @Benchmark
+    public byte[] serializePrefixedRequest() throws IOException {
+        return mapper.writeValueAsBytes(prefixedRequest);
+    }
+
+    @Benchmark
+    public byte[] serializePlainRequest() throws IOException {
+        return mapper.writeValueAsBytes(plainRequest);
+    }
+
+    @Benchmark
+    public ChatResponse deserializeResponse() throws IOException {
+        return mapper.readValue(response, ChatResponse.class);
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Работа GptService до обращения к API OpenAI: построение запроса для приватного чата и группы, проверка белого
+ * списка и разбор примеров из конфигурации. Сервис собирается без Spring, поля задаются так же, как их задал бы
+ * контейнер из application.properties.
+ */
+
+package ru.valkerik.services;
+
+import com.pengrad.telegrambot.BotUtils;
+import com.pengrad.telegrambot.model.Update;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.valkerik.TelegramGPTBotApp;
+import ru.valkerik.model.request.ChatRequest;
+import ru.valkerik.model.request.Message;
+import ru.valkerik.utils.MessageLog;
+import ru.valkerik.utils.TokenCounter;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GptServiceBenchmark {
+
+    private static final String MODEL = "gpt-3.5-turbo";
+
+    /**
+     * Сервис без белого списка, как у бота, доступного всем.
+     */
+    @State(Scope.Benchmark)
+    public static class Service {
+        GptService service;
+        Update privateUpdate;
+        Update groupUpdate;
+
+        @Setup
+        public void setup() {
+            service = create(null);
+            privateUpdate = update(42, "User", 42, "private", null, "Расскажи, как устроен кэш контекстов?");
+            groupUpdate = update(43, "User", -100, "supergroup", "Bot Testers", "@gptbot что такое GCRA?");
+        }
+    }
+
+    /**
+     * Сервис с белым списком заданного размера. Проверяется только разрешенный доступ: отказ пишет в журнал
+     * ошибку, и бенчмарк измерял бы логирование.
+     */
+    @State(Scope.Benchmark)
+    public static class Whitelisted {
+        @Param({"10", "1000", "100000"})
+        public int whitelistSize;
+
+        GptService service;
+        Update privateUpdate;
+        Update groupUpdate;
+
+        @Setup
+        public void setup() {
+            ArrayList<String> whiteList = new ArrayList<>();
+            for (int i = 0; i < whitelistSize; i++) {
+                whiteList.add("User" + i);
+            }
+            whiteList.add("Bot Testers");
+            service = create(whiteList);
+            privateUpdate = update(42, "User" + (whitelistSize - 1), 42, "private", null, "Расскажи, как устроен кэш контекстов?");
+            // автора группы нет в списке, доступ дает название группы
+            groupUpdate = update(43, "Stranger", -100, "supergroup", "Bot Testers", "@gptbot что такое GCRA?");
+        }
+    }
+
+    /**
+     * Контекст пользователя, заполненный до ограничений, как в долгом разговоре.
+     */
+    @State(Scope.Thread)
+    public static class Conversation {
+        MessageLog<Message> context;
+        ArrayList<String> examples;
+
+        @Setup
+        public void setup() {
+            TokenCounter counter = new TokenCounter(MODEL);
+            context = new MessageLog<>(7, 3400, counter::count);
+            for (int i = 0; i < 7; i++) {
+                context.add(new Message().withRole(i % 2 == 0 ? "user" : "assistant")
+                        .withContent("Предыдущая реплика номер " + i + " с обычным количеством слов в ней."));
+            }
+            examples = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                examples.add((i % 2 == 0 ? "User" : "Assistant") + ":Пример реплики номер " + i + ": с двоеточием внутри");
+            }
+        }
+    }
+
+    @Benchmark
+    public ChatRequest buildPrivateRequest(Service state, Conversation conversation) {
+        return state.service.buildRequest(state.privateUpdate, conversation.context);
+    }
+
+    @Benchmark
+    public ChatRequest buildGroupRequest(Service state) {
+        return state.service.buildRequest(state.groupUpdate, null);
+    }
+
+    @Benchmark
+    public boolean checkUserPermission(Whitelisted state) {
+        return state.service.checkPermission(state.privateUpdate);
+    }
+
+    @Benchmark
+    public boolean checkGroupPermission(Whitelisted state) {
+        return state.service.checkPermission(state.groupUpdate);
+    }
+
+    @Benchmark
+    public ArrayList<Message> parseExamples(Service state, Conversation conversation) {
+        return state.service.getExamples(conversation.examples);
+    }
+
+    private static GptService create(ArrayList<String> whiteList) {
+        MockEnvironment env = new MockEnvironment();
+        env.setProperty("openai.example.1", "User:Привет! Кто ты?");
+        env.setProperty("openai.example.2", "Assistant:Я GPTbot, помощник, который говорит по-русски.");
+        GptService service = new GptService();
+        ReflectionTestUtils.setField(service, "model", MODEL);
+        ReflectionTestUtils.setField(service, "temperature", 0.7);
+        ReflectionTestUtils.setField(service, "maxtokens", 500);
+        ReflectionTestUtils.setField(service, "systemprompt", "You are \"GPTbot\" a helpful assistant, you speak Russian.");
+        ReflectionTestUtils.setField(service, "maxMessagePoolSize", 7);
+        ReflectionTestUtils.setField(service, "contextWindow", 4096);
+        ReflectionTestUtils.setField(service, "minCompletionTokens", 500);
+        ReflectionTestUtils.setField(service, "contextTtlMinutes", 60L);
+        ReflectionTestUtils.setField(service, "contextMaxUsers", 10000L);
+        ReflectionTestUtils.setField(service, "whiteList", whiteList);
+        ReflectionTestUtils.setField(service, "env", env);
+        ReflectionTestUtils.setField(service, "mapper", new TelegramGPTBotApp().objectMapper());
+        ReflectionTestUtils.setField(service, "metrics", new Metrics());
+        // журнал выключен, как и по умолчанию
+        ReflectionTestUtils.setField(service, "journal", new ConversationJournal());
+        ReflectionTestUtils.invokeMethod(service, "init");
+        return service;
+    }
+
+    private static Update update(long userId, String firstName, long chatId, String type, String title, String text) {
+        return BotUtils.parseUpdate("{\"update_id\":1,\"message\":{\"message_id\":1,"
+                + "\"from\":{\"id\":" + userId + ",\"is_bot\":false,\"first_name\":\"" + firstName + "\"},"
+                + "\"chat\":{\"id\":" + chatId + ",\"type\":\"" + type + "\"" + (title == null ? "" : ",\"title\":\"" + title + "\"") + "},"
+                + "\"date\":1680000000,\"text\":\"" + text + "\"}}");
+    }
+}
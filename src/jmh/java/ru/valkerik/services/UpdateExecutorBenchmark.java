@@ -0,0 +1,68 @@
+/**
+ * Пропускная способность режимов UpdateExecutor: тысяча обновлений из ста чатов (каждый четвертый - группа)
+ * с небольшой работой процессора на каждое. Бенчмарк показывает накладные расходы самой раздачи обновлений
+ * потокам, а не обработку сообщений.
+ */
+
+package ru.valkerik.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdateExecutorBenchmark {
+
+    private static final int UPDATES = 1000;
+    private static final int CHATS = 100;
+    // Условная работа обработки одного обновления
+    private static final long WORK = 500;
+
+    @Param({"fair", "partitioned", "pool", "virtual"})
+    public String mode;
+
+    private UpdateExecutor executor;
+
+    @Setup
+    public void setup() {
+        executor = UpdateExecutor.create(mode, 8, 1000, 4, 1);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        executor.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(UPDATES)
+    public void dispatch() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(UPDATES);
+        for (int i = 0; i < UPDATES; i++) {
+            long chatId = i % CHATS;
+            executor.execute(chatId, chatId % 4 == 0, false, () -> {
+                Blackhole.consumeCPU(WORK);
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+}
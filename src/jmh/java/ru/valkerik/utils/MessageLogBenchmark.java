@@ -0,0 +1,81 @@
+package ru.valkerik.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.valkerik.model.request.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+Добавление сообщений в заполненный журнал MessageLog, как в контексте пользователя: каждое добавление вытесняет
+самые старые сообщения по количеству и бюджету токенов. Токены сообщений считаются один раз и кэшируются в самом
+сообщении, поэтому здесь измеряется именно работа журнала. addAndSnapshot добавляет к этому снимок для запроса.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageLogBenchmark {
+
+    // Бюджет истории при окне 4096 токенов за вычетом подсказки и запаса на ответ
+    private static final int HISTORY_BUDGET = 3400;
+
+    @Param({"7", "50", "500"})
+    public int poolSize;
+
+    private MessageLog<Message> log;
+    private Message[] messages;
+    private List<Message> batch;
+    private int next;
+
+    @Setup
+    public void setup() {
+        TokenCounter counter = new TokenCounter("gpt-3.5-turbo");
+        messages = new Message[64];
+        for (int i = 0; i < messages.length; i++) {
+            Message message = new Message().withRole(i % 2 == 0 ? "user" : "assistant")
+                    .withContent("Сообщение номер " + i + ", в котором примерно столько слов, сколько в обычной реплике разговора.");
+            counter.count(message);
+            messages[i] = message;
+        }
+        batch = new ArrayList<>(List.of(messages).subList(0, 10));
+        log = new MessageLog<>(poolSize, HISTORY_BUDGET, counter::count);
+        for (int i = 0; i < poolSize; i++) {
+            log.add(messages[i & 63]);
+        }
+    }
+
+    @Benchmark
+    public MessageLog<Message> add() {
+        log.add(messages[next++ & 63]);
+        return log;
+    }
+
+    @Benchmark
+    public MessageLog<Message> addAll() {
+        log.addAll(batch);
+        return log;
+    }
+
+    /**
+     * Ход разговора: сообщение добавляется в журнал, и снимок журнала уходит в запрос.
+     */
+    @Benchmark
+    public List<Message> addAndSnapshot() {
+        log.add(messages[next++ & 63]);
+        return log.snapshot();
+    }
+}
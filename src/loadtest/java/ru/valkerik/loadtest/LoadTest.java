@@ -0,0 +1,422 @@
+/**
+ * Нагрузочный тест бота целиком: приложение Spring запускается против локальных заглушек Bot API Telegram
+ * и OpenAI, а N имитируемых пользователей пишут боту и ждут ответа. Каждый пользователь работает в замкнутом
+ * цикле: отправляет сообщение, ждет ответа, думает и пишет снова. Нагрузка задается ступенями (например,
+ * 10, 50, 100 пользователей), по каждой ступени печатается пропускная способность, перцентили задержки ответа,
+ * ошибки и использование памяти, а в конце - итоговая таблица и метрики самого бота. Ступень, после которой
+ * пропускная способность перестает расти, а p99 резко растет, показывает предельную нагрузку.
+ * Все работает без сети на одной машине. Параметры теста задаются как --loadtest.*=значение, все аргументы
+ * передаются и приложению, поэтому так же можно переопределить любое свойство бота.
+ */
+
+package ru.valkerik.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import ru.valkerik.TelegramGPTBotApp;
+import ru.valkerik.services.Metrics;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class LoadTest implements MockTelegramServer.ReplyListener {
+
+    private static final long GROUP_CHAT_ID = -1_000_000_001L;
+    private static final String WEBHOOK_SECRET = "loadtest";
+
+    private final Options options;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "loadtest-driver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final HttpClient http = HttpClient.newHttpClient();
+    // Ожидающие ответа сообщения: в приватном чате - по чату, в группе - по сообщению, на которое ответит бот
+    private final ConcurrentHashMap<Long, Pending> byChat = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Pending> byMessage = new ConcurrentHashMap<>();
+    private final AtomicInteger messageIds = new AtomicInteger();
+    private final AtomicLong heapMax = new AtomicLong();
+    private final List<String> texts;
+    private final String botName;
+    private final boolean webhook;
+    private final int replyTimeoutSeconds;
+    private final long thinkMillis;
+    private final double groupShare;
+    private int webhookPort;
+    private MockTelegramServer telegram;
+    private MockOpenAIServer openai;
+    private volatile Stage stage;
+
+    private LoadTest(Options options) throws IOException {
+        this.options = options;
+        this.botName = options.get("bot.name", "loadtest_bot");
+        this.webhook = options.get("loadtest.updates.mode", "polling").equals("webhook");
+        this.replyTimeoutSeconds = options.getInt("loadtest.reply.timeout.seconds", 60);
+        this.thinkMillis = options.getLong("loadtest.think.ms", 1000);
+        this.groupShare = options.getDouble("loadtest.group.share", 0);
+        String textsFile = options.get("loadtest.texts.file", "");
+        this.texts = textsFile.isEmpty() ? List.of() : Files.readAllLines(Paths.get(textsFile), StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest(new Options(args));
+        System.exit(test.run());
+    }
+
+    private int run() throws Exception {
+        telegram = new MockTelegramServer(MockServer.Fault.from(options, "loadtest.telegram", 20, 20, "429"), this);
+        openai = new MockOpenAIServer(MockServer.Fault.from(options, "loadtest.openai", 800, 400, "500,429,503"),
+                options.getInt("loadtest.openai.completion.words", 150));
+        System.out.println("Mock Telegram: http://127.0.0.1:" + telegram.getPort() + ", " + telegram.fault);
+        System.out.println("Mock OpenAI: http://127.0.0.1:" + openai.getPort() + ", " + openai.fault);
+
+        // смещение прошлого запуска не подходит к новой нумерации обновлений заглушки
+        Files.deleteIfExists(Paths.get("target/loadtest.offset"));
+        ConfigurableApplicationContext context = SpringApplication.run(TelegramGPTBotApp.class, springArgs());
+        scheduler.scheduleAtFixedRate(this::sampleHeap, 0, 100, TimeUnit.MILLISECONDS);
+        List<Stage> stages = new ArrayList<>();
+        try {
+            for (String users : options.get("loadtest.users", "10,50,100").split(",")) {
+                Stage result = runStage(Integer.parseInt(users.trim()));
+                System.out.println(result.report());
+                stages.add(result);
+            }
+            String report = summary(stages) + "\n" + context.getBean(Metrics.class).scrape();
+            Path file = Paths.get(options.get("loadtest.report", "target/loadtest-report.txt"));
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            StringBuilder all = new StringBuilder();
+            stages.forEach(stage -> all.append(stage.report()).append('\n'));
+            Files.writeString(file, all + report, StandardCharsets.UTF_8);
+            System.out.println(summary(stages));
+            System.out.println("Отчет и метрики бота: " + file.toAbsolutePath());
+        } finally {
+            context.close();
+            telegram.stop();
+            openai.stop();
+        }
+        return 0;
+    }
+
+    /**
+     * Свойства бота из аргументов теста перекрывают настройки по умолчанию.
+     * @return аргументы приложения: адреса заглушек, файлы в target и выключенные лишние функции
+     */
+    private String[] springArgs() throws IOException {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("bot.token", "loadtest");
+        properties.put("bot.name", botName);
+        properties.put("bot.api.url", "http://127.0.0.1:" + telegram.getPort() + "/bot");
+        properties.put("bot.whitelist", "");
+        properties.put("bot.presentation.pool.size", "0");
+        properties.put("openai.url", "http://127.0.0.1:" + openai.getPort() + "/v1/chat/completions");
+        properties.put("openai.apikey", "loadtest");
+        properties.put("openai.stream", "false");
+        properties.put("bot.updates.timeout", "5");
+        properties.put("bot.updates.offset.file", "target/loadtest.offset");
+        properties.put("bot.usage.file", "target/loadtest-usage.json");
+        properties.put("bot.journal.enabled", "false");
+        properties.put("bot.quota.enabled", "false");
+        properties.put("metrics.port", "0");
+        properties.put("logging.level.ru.valkerik", "WARN");
+        properties.put("logging.file.name", "target/loadtest.log");
+        properties.put("spring.main.banner-mode", "off");
+        if (webhook) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                webhookPort = socket.getLocalPort();
+            }
+            properties.put("bot.updates.mode", "webhook");
+            properties.put("bot.webhook.url", "");
+            properties.put("bot.webhook.port", String.valueOf(webhookPort));
+            properties.put("bot.webhook.secret", WEBHOOK_SECRET);
+        }
+        properties.putAll(options.values);
+        List<String> result = new ArrayList<>();
+        properties.forEach((key, value) -> result.add("--" + key + "=" + value));
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * Выполняет одну ступень нагрузки: пользователи вступают равномерно за loadtest.rampup.seconds
+     * и пишут боту loadtest.stage.seconds, после чего ступень ждет последних ответов.
+     * @param users количество пользователей
+     * @return итоги ступени
+     */
+    private Stage runStage(int users) throws Exception {
+        long seconds = options.getLong("loadtest.stage.seconds", 60);
+        long rampup = options.getLong("loadtest.rampup.seconds", 10);
+        Stage current = new Stage(users, telegram.getInjectedErrors(), openai.getInjectedErrors());
+        heapMax.set(0);
+        this.stage = current;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            CompletableFuture<Void> userDone = new CompletableFuture<>();
+            done.add(userDone);
+            long userId = 1_000_000L * current.users + i + 1;
+            scheduler.schedule(() -> next(current, userId, 0, end, userDone), rampup * 1000 * i / users, TimeUnit.MILLISECONDS);
+        }
+        CompletableFuture.allOf(done.toArray(new CompletableFuture[0])).get();
+        current.finish(telegram.getInjectedErrors(), openai.getInjectedErrors(), heapMax.get());
+        return current;
+    }
+
+    /**
+     * Отправляет очередное сообщение пользователя и после ответа или таймаута планирует следующее.
+     */
+    private void next(Stage stage, long userId, int sequence, long end, CompletableFuture<Void> userDone) {
+        if (System.nanoTime() >= end) {
+            userDone.complete(null);
+            return;
+        }
+        boolean group = groupShare > 0 && ThreadLocalRandom.current().nextDouble() < groupShare;
+        int messageId = messageIds.incrementAndGet();
+        long chatId = group ? GROUP_CHAT_ID : userId;
+        Pending pending = new Pending();
+        if (group) {
+            byMessage.put(messageId, pending);
+        } else {
+            byChat.put(chatId, pending);
+        }
+        stage.sent.increment();
+        inject(stage, update(userId, chatId, group, messageId, text(userId, sequence, group)));
+        pending.reply.orTimeout(replyTimeoutSeconds, TimeUnit.SECONDS).whenComplete((text, error) -> {
+            if (error != null) {
+                stage.timeouts.increment();
+                byMessage.remove(messageId, pending);
+                byChat.remove(chatId, pending);
+            } else {
+                stage.latency.recordValue(Math.max(0, (System.nanoTime() - pending.sentNanos) / 1000));
+                stage.replies.increment();
+                if (text.startsWith("Извините")) {
+                    stage.apologies.increment();
+                }
+            }
+            long think = thinkMillis > 0 ? (long) (-thinkMillis * Math.log(1 - ThreadLocalRandom.current().nextDouble())) : 0;
+            scheduler.schedule(() -> next(stage, userId, sequence + 1, end, userDone), think, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    @Override
+    public void onReply(long chatId, Integer replyTo, String text) {
+        Pending pending = replyTo != null ? byMessage.remove(replyTo) : byChat.remove(chatId);
+        if (pending != null) {
+            pending.reply.complete(text);
+        } else if (stage != null) {
+            // продолжение длинного ответа или ответ, пришедший после таймаута
+            stage.unmatched.increment();
+        }
+    }
+
+    private String text(long userId, int sequence, boolean group) {
+        String text = texts.isEmpty()
+                ? "Вопрос " + sequence + " пользователя " + userId + ": расскажи что-нибудь интересное про число " + sequence
+                : texts.get((int) ((userId + sequence) % texts.size()));
+        return group ? "@" + botName + " " + text : text;
+    }
+
+    private ObjectNode update(long userId, long chatId, boolean group, int messageId, String text) {
+        // в режиме опроса заглушка Telegram присвоит свой update_id
+        ObjectNode update = mapper.createObjectNode().put("update_id", messageId);
+        ObjectNode message = update.putObject("message");
+        message.put("message_id", messageId).put("date", System.currentTimeMillis() / 1000).put("text", text);
+        message.putObject("from").put("id", userId).put("is_bot", false).put("first_name", "User" + userId);
+        ObjectNode chat = message.putObject("chat").put("id", chatId).put("type", group ? "supergroup" : "private");
+        if (group) {
+            chat.put("title", "Load test");
+        }
+        return update;
+    }
+
+    /**
+     * Передает обновление боту: через очередь getUpdates заглушки или POST-запросом на webhook бота,
+     * как это делает Telegram.
+     */
+    private void inject(Stage stage, ObjectNode update) {
+        if (!webhook) {
+            telegram.enqueue(update);
+            return;
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + webhookPort
+                        + options.get("bot.webhook.path", "/telegram")))
+                .header("Content-Type", "application/json")
+                .header("X-Telegram-Bot-Api-Secret-Token", WEBHOOK_SECRET)
+                .POST(HttpRequest.BodyPublishers.ofString(update.toString()))
+                .build();
+        http.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+            if (error != null || response.statusCode() != 200) {
+                stage.webhookErrors.increment();
+            }
+        });
+    }
+
+    private void sampleHeap() {
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        heapMax.accumulateAndGet(used, Math::max);
+    }
+
+    private static String summary(List<Stage> stages) {
+        StringBuilder out = new StringBuilder(String.format("%n%8s %12s %10s %10s %10s %10s %8s%n",
+                "users", "replies/s", "p50 ms", "p99 ms", "max ms", "errors", "heap MB"));
+        for (Stage stage : stages) {
+            out.append(String.format("%8d %12.1f %10.0f %10.0f %10.0f %10d %8d%n", stage.users, stage.throughput(),
+                    stage.percentile(50), stage.percentile(99), stage.latency.getMaxValue() / 1000.0,
+                    stage.errors(), stage.heapMax / (1024 * 1024)));
+        }
+        return out.toString();
+    }
+
+    private static final class Pending {
+        private final long sentNanos = System.nanoTime();
+        private final CompletableFuture<String> reply = new CompletableFuture<>();
+    }
+
+    /**
+     * Итоги одной ступени нагрузки.
+     */
+    private static final class Stage {
+        private final int users;
+        // Задержка от отправки сообщения до ответа бота в микросекундах
+        private final Histogram latency = new ConcurrentHistogram(3);
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder replies = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder apologies = new LongAdder();
+        private final LongAdder unmatched = new LongAdder();
+        private final LongAdder webhookErrors = new LongAdder();
+        private final long startNanos = System.nanoTime();
+        private final long gcCountBefore = gcCount();
+        private final long gcTimeBefore = gcTime();
+        private final Map<Integer, Long> telegramErrorsBefore;
+        private final Map<Integer, Long> openaiErrorsBefore;
+        private Map<Integer, Long> telegramErrors;
+        private Map<Integer, Long> openaiErrors;
+        private long elapsedNanos;
+        private long heapMax;
+        private long gcCount;
+        private long gcTime;
+
+        Stage(int users, Map<Integer, Long> telegramErrors, Map<Integer, Long> openaiErrors) {
+            this.users = users;
+            this.telegramErrorsBefore = telegramErrors;
+            this.openaiErrorsBefore = openaiErrors;
+        }
+
+        void finish(Map<Integer, Long> telegramErrors, Map<Integer, Long> openaiErrors, long heapMax) {
+            this.elapsedNanos = System.nanoTime() - startNanos;
+            this.telegramErrors = delta(telegramErrorsBefore, telegramErrors);
+            this.openaiErrors = delta(openaiErrorsBefore, openaiErrors);
+            this.heapMax = heapMax;
+            this.gcCount = gcCount() - gcCountBefore;
+            this.gcTime = gcTime() - gcTimeBefore;
+        }
+
+        double throughput() {
+            return replies.sum() / (elapsedNanos / 1e9);
+        }
+
+        double percentile(double percentile) {
+            return latency.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+        long errors() {
+            return timeouts.sum() + apologies.sum() + webhookErrors.sum();
+        }
+
+        String report() {
+            return String.format("Ступень: %d пользователей, %.1f с%n"
+                            + "  отправлено %d, ответов %d, %.1f ответов/с%n"
+                            + "  задержка ответа, мс: p50 %.0f, p90 %.0f, p99 %.0f, p99.9 %.0f, max %.0f%n"
+                            + "  ошибки: без ответа %d, извинений %d, ошибок webhook %d, лишних ответов %d%n"
+                            + "  ошибки заглушек: OpenAI %s, Telegram %s%n"
+                            + "  память: пик heap %d МБ, сборок мусора %d (%d мс)%n",
+                    users, elapsedNanos / 1e9, sent.sum(), replies.sum(), throughput(),
+                    percentile(50), percentile(90), percentile(99), percentile(99.9), latency.getMaxValue() / 1000.0,
+                    timeouts.sum(), apologies.sum(), webhookErrors.sum(), unmatched.sum(),
+                    openaiErrors, telegramErrors, heapMax / (1024 * 1024), gcCount, gcTime);
+        }
+
+        private static Map<Integer, Long> delta(Map<Integer, Long> before, Map<Integer, Long> after) {
+            Map<Integer, Long> result = new HashMap<>();
+            after.forEach((status, count) -> result.put(status, count - before.getOrDefault(status, 0L)));
+            return result;
+        }
+
+        private static long gcCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        }
+
+        private static long gcTime() {
+            long time = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                time += Math.max(0, gc.getCollectionTime());
+            }
+            return time;
+        }
+    }
+
+    /**
+     * Параметры теста из аргументов --ключ=значение, а если их там нет - из системных свойств.
+     */
+    static final class Options {
+        private final Map<String, String> values = new LinkedHashMap<>();
+
+        Options(String[] args) {
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (arg.startsWith("--") && eq > 2) {
+                    values.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            }
+        }
+
+        String get(String key, String defaultValue) {
+            String value = values.get(key);
+            return value != null ? value : System.getProperty(key, defaultValue);
+        }
+
+        int getInt(String key, int defaultValue) {
+            return Integer.parseInt(get(key, String.valueOf(defaultValue)));
+        }
+
+        long getLong(String key, long defaultValue) {
+            return Long.parseLong(get(key, String.valueOf(defaultValue)));
+        }
+
+        double getDouble(String key, double defaultValue) {
+            return Double.parseDouble(get(key, String.valueOf(defaultValue)));
+        }
+    }
+}
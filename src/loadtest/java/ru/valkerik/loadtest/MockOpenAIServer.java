@@ -0,0 +1,92 @@
+/**
+ * Заглушка OpenAI-совместимого /v1/chat/completions для нагрузочного теста. Отвечает текстом заданной длины
+ * после случайной задержки, в обычном или потоковом (SSE) режиме, и заполняет usage. Ошибка 429
+ * возвращается с Retry-After, остальные коды - с телом ошибки в формате OpenAI.
+ */
+
+package ru.valkerik.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class MockOpenAIServer extends MockServer {
+
+    private static final String WORD = "ответ ";
+
+    // Длина ответа в словах, каждое слово примерно токен
+    private final int completionWords;
+    private final AtomicLong ids = new AtomicLong();
+
+    MockOpenAIServer(Fault fault, int completionWords) throws IOException {
+        super("mock-openai", fault);
+        this.completionWords = completionWords;
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestURI().getPath().endsWith("/chat/completions")) {
+            send(exchange, 404, "{\"error\":{\"message\":\"Unknown path\"}}".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        JsonNode request = mapper.readTree(exchange.getRequestBody());
+        delay();
+        int status = nextError();
+        if (status != 0) {
+            if (status == 429) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+            }
+            send(exchange, status, ("{\"error\":{\"message\":\"Mock error " + status + "\",\"type\":\"server_error\"}}")
+                    .getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        String model = request.path("model").asText("gpt-3.5-turbo");
+        // грубая оценка токенов подсказки: символы / 4
+        int promptTokens = Math.max(1, request.path("messages").toString().length() / 4);
+        String id = "chatcmpl-mock" + ids.incrementAndGet();
+        if (request.path("stream").asBoolean(false)) {
+            stream(exchange, id, model, promptTokens);
+            return;
+        }
+        ObjectNode body = mapper.createObjectNode().put("id", id).put("object", "chat.completion")
+                .put("created", System.currentTimeMillis() / 1000).put("model", model);
+        body.putObject("usage").put("prompt_tokens", promptTokens).put("completion_tokens", completionWords)
+                .put("total_tokens", promptTokens + completionWords);
+        ObjectNode choice = body.putArray("choices").addObject();
+        choice.putObject("message").put("role", "assistant").put("content", WORD.repeat(completionWords).trim());
+        choice.put("finish_reason", "stop").put("index", 0);
+        send(exchange, 200, mapper.writeValueAsBytes(body));
+    }
+
+    /**
+     * Отдает ответ событиями SSE: по событию на десять слов, затем событие с usage и [DONE].
+     */
+    private void stream(HttpExchange exchange, String id, String model, int promptTokens) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int sent = 0; sent < completionWords; sent += 10) {
+                ObjectNode chunk = mapper.createObjectNode().put("id", id).put("object", "chat.completion.chunk").put("model", model);
+                ObjectNode choice = chunk.putArray("choices").addObject().put("index", 0);
+                choice.putObject("delta").put("content", WORD.repeat(Math.min(10, completionWords - sent)));
+                event(out, mapper.writeValueAsString(chunk));
+            }
+            ObjectNode last = mapper.createObjectNode().put("id", id).put("object", "chat.completion.chunk").put("model", model);
+            last.putArray("choices");
+            last.putObject("usage").put("prompt_tokens", promptTokens).put("completion_tokens", completionWords)
+                    .put("total_tokens", promptTokens + completionWords);
+            event(out, mapper.writeValueAsString(last));
+            event(out, "[DONE]");
+        }
+    }
+
+    private static void event(OutputStream out, String data) throws IOException {
+        out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
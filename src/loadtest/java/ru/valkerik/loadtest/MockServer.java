@@ -0,0 +1,212 @@
+/**
+ * Общая часть заглушек нагрузочного теста: HTTP-сервер JDK на свободном порту localhost, задержка ответа
+ * и случайные ошибки. Задержка складывается из базовой, равномерного разброса и редкого длинного хвоста,
+ * так что можно смоделировать и обычную медленную модель, и отдельные очень долгие ответы.
+ */
+
+package ru.valkerik.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+abstract class MockServer {
+
+    protected final ObjectMapper mapper = new ObjectMapper();
+    protected final Fault fault;
+    // Ответы с внесенной ошибкой по кодам
+    protected final Map<Integer, LongAdder> injectedErrors = new HashMap<>();
+    protected final LongAdder requests = new LongAdder();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param name имя потоков сервера
+     * @param fault задержки и ошибки ответов
+     * @throws IOException, если порт не удалось открыть
+     */
+    MockServer(String name, Fault fault) throws IOException {
+        this.fault = fault;
+        for (int status : fault.statuses) {
+            injectedErrors.put(status, new LongAdder());
+        }
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        AtomicInteger counter = new AtomicInteger();
+        // ответы задерживаются сном, поэтому потоков столько, сколько запросов одновременно в работе
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try (exchange) {
+                requests.increment();
+                handle(exchange);
+            } catch (IOException | RuntimeException e) {
+                // клиент мог закрыть соединение, не дождавшись ответа
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Обрабатывает запрос к заглушке.
+     * @param exchange запрос и ответ
+     * @throws IOException, если ответ не удалось записать
+     */
+    protected abstract void handle(HttpExchange exchange) throws IOException;
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return количество запросов, ответы на которые заглушка намеренно сделала ошибочными, по кодам
+     */
+    Map<Integer, Long> getInjectedErrors() {
+        Map<Integer, Long> result = new HashMap<>();
+        injectedErrors.forEach((status, count) -> result.put(status, count.sum()));
+        return result;
+    }
+
+    long getRequests() {
+        return requests.sum();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Ждет случайную задержку ответа.
+     */
+    protected void delay() {
+        long millis = fault.nextDelayMillis();
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return код ошибки, которую нужно вернуть на этот запрос, или 0
+     */
+    protected int nextError() {
+        int status = fault.nextError();
+        if (status != 0) {
+            injectedErrors.get(status).increment();
+        }
+        return status;
+    }
+
+    protected static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Разбирает параметры запроса из строки запроса и тела application/x-www-form-urlencoded.
+     * @param exchange запрос
+     * @return параметры
+     * @throws IOException, если тело не удалось прочитать
+     */
+    protected static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parse(exchange.getRequestURI().getRawQuery(), params);
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || contentType.startsWith("application/x-www-form-urlencoded")) {
+            parse(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static void parse(String encoded, Map<String, String> params) {
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Задержки и ошибки ответов заглушки, задаются параметрами &lt;prefix&gt;.latency.ms, .jitter.ms, .tail.rate,
+     * .tail.ms, .error.rate и .error.statuses.
+     */
+    static final class Fault {
+        private final long latencyMillis;
+        private final long jitterMillis;
+        private final double tailRate;
+        private final long tailMillis;
+        private final double errorRate;
+        private final int[] statuses;
+
+        Fault(long latencyMillis, long jitterMillis, double tailRate, long tailMillis, double errorRate, int[] statuses) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.tailRate = tailRate;
+            this.tailMillis = tailMillis;
+            this.errorRate = errorRate;
+            this.statuses = statuses;
+        }
+
+        static Fault from(LoadTest.Options options, String prefix, long latency, long jitter, String statuses) {
+            String[] codes = options.get(prefix + ".error.statuses", statuses).split(",");
+            int[] parsed = new int[codes.length];
+            for (int i = 0; i < codes.length; i++) {
+                parsed[i] = Integer.parseInt(codes[i].trim());
+            }
+            return new Fault(options.getLong(prefix + ".latency.ms", latency),
+                    options.getLong(prefix + ".jitter.ms", jitter),
+                    options.getDouble(prefix + ".tail.rate", 0),
+                    options.getLong(prefix + ".tail.ms", 0),
+                    options.getDouble(prefix + ".error.rate", 0),
+                    parsed);
+        }
+
+        long nextDelayMillis() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long delay = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+            if (tailRate > 0 && random.nextDouble() < tailRate) {
+                delay += tailMillis;
+            }
+            return delay;
+        }
+
+        int nextError() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            return errorRate > 0 && random.nextDouble() < errorRate ? statuses[random.nextInt(statuses.length)] : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency %d ms + 0..%d ms, tail %.2f%% +%d ms, errors %.2f%%",
+                    latencyMillis, jitterMillis, tailRate * 100, tailMillis, errorRate * 100);
+        }
+    }
+}
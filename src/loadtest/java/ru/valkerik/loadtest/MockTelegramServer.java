@@ -0,0 +1,140 @@
+/**
+ * Заглушка Bot API Telegram для нагрузочного теста. getUpdates отдает поставленные тестом обновления
+ * с long polling и подтверждением по offset, как настоящий Bot API; sendMessage и editMessageText отвечают
+ * отправленным сообщением и сообщают тесту об ответе бота. На остальные методы (setWebhook, deleteWebhook...)
+ * заглушка отвечает успехом. Ошибка 429 возвращается с retry_after, как у Telegram.
+ */
+
+package ru.valkerik.loadtest;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+final class MockTelegramServer extends MockServer {
+
+    /**
+     * Получатель ответов бота.
+     */
+    interface ReplyListener {
+        /**
+         * @param chatId чат, в который бот ответил
+         * @param replyTo сообщение, на которое бот ответил, или null
+         * @param text текст ответа
+         */
+        void onReply(long chatId, Integer replyTo, String text);
+    }
+
+    private final ReplyListener listener;
+    // Неподтвержденные обновления по update_id
+    private final TreeMap<Integer, ObjectNode> updates = new TreeMap<>();
+    private final AtomicInteger nextUpdateId = new AtomicInteger(1);
+    private final AtomicInteger nextMessageId = new AtomicInteger(1_000_000);
+    private final LongAdder edits = new LongAdder();
+
+    MockTelegramServer(Fault fault, ReplyListener listener) throws IOException {
+        super("mock-telegram", fault);
+        this.listener = listener;
+    }
+
+    /**
+     * Ставит обновление в очередь getUpdates.
+     * @param update обновление без update_id
+     */
+    void enqueue(ObjectNode update) {
+        synchronized (updates) {
+            int id = nextUpdateId.getAndIncrement();
+            update.put("update_id", id);
+            updates.put(id, update);
+            updates.notifyAll();
+        }
+    }
+
+    long getEdits() {
+        return edits.sum();
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = path.substring(path.lastIndexOf('/') + 1);
+        Map<String, String> params = params(exchange);
+        switch (method) {
+            case "getUpdates":
+                getUpdates(exchange, params);
+                break;
+            case "sendMessage":
+            case "editMessageText":
+                message(exchange, method, params);
+                break;
+            default:
+                send(exchange, 200, "{\"ok\":true,\"result\":true}".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void getUpdates(HttpExchange exchange, Map<String, String> params) throws IOException {
+        int offset = Integer.parseInt(params.getOrDefault("offset", "0"));
+        int limit = Integer.parseInt(params.getOrDefault("limit", "100"));
+        long deadline = System.currentTimeMillis() + 1000L * Integer.parseInt(params.getOrDefault("timeout", "0"));
+        ArrayNode result = mapper.createArrayNode();
+        synchronized (updates) {
+            // offset подтверждает все обновления до него
+            updates.headMap(offset).clear();
+            long wait;
+            while (updates.isEmpty() && (wait = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    updates.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            for (ObjectNode update : updates.values()) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                result.add(update);
+            }
+        }
+        ObjectNode body = mapper.createObjectNode().put("ok", true);
+        body.set("result", result);
+        send(exchange, 200, mapper.writeValueAsBytes(body));
+    }
+
+    private void message(HttpExchange exchange, String method, Map<String, String> params) throws IOException {
+        delay();
+        int status = nextError();
+        if (status != 0) {
+            ObjectNode error = mapper.createObjectNode().put("ok", false).put("error_code", status)
+                    .put("description", status == 429 ? "Too Many Requests: retry after 1" : "Mock error");
+            if (status == 429) {
+                error.putObject("parameters").put("retry_after", 1);
+            }
+            send(exchange, status, mapper.writeValueAsBytes(error));
+            return;
+        }
+        long chatId = Long.parseLong(params.get("chat_id"));
+        String text = params.getOrDefault("text", "");
+        int messageId;
+        if (method.equals("editMessageText")) {
+            edits.increment();
+            messageId = Integer.parseInt(params.getOrDefault("message_id", "0"));
+        } else {
+            messageId = nextMessageId.getAndIncrement();
+            String replyTo = params.get("reply_to_message_id");
+            listener.onReply(chatId, replyTo == null ? null : Integer.valueOf(replyTo), text);
+        }
+        ObjectNode body = mapper.createObjectNode().put("ok", true);
+        ObjectNode message = body.putObject("result");
+        message.put("message_id", messageId).put("date", System.currentTimeMillis() / 1000).put("text", text);
+        message.putObject("chat").put("id", chatId).put("type", chatId > 0 ? "private" : "supergroup");
+        send(exchange, 200, mapper.writeValueAsBytes(body));
+    }
+}
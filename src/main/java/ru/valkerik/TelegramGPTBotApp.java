@@ -1,11 +1,28 @@
 package ru.valkerik;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
 
 @SpringBootApplication
 public class TelegramGPTBotApp {
     public static void main(String[] args) {
         SpringApplication.run(TelegramGPTBotApp.class, args);
     }
-}
\ No newline at end of file
+
+    /**
+     * Общий ObjectMapper приложения. Он потокобезопасен, поэтому создается один раз.
+     * Целевые потоки не закрываются, чтобы JSON можно было писать прямо в тело HTTP-запроса.
+     */
+    @Bean
+    public ObjectMapper objectMapper() {
+        return new ObjectMapper()
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Этот класс представляет одну пару адрес API и ключ. Он считает выполняющиеся через нее вызовы, запоминает
+ * остаток лимитов из заголовков x-ratelimit-* и время, до которого ключ нельзя использовать после ответа 429,
+ * а также имеет собственный автоматический выключатель.
+ */
+package ru.valkerik.clients;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Slf4j
+final class ApiEndpoint {
+
+    // Пауза после ответа 429, если сервер не сообщил, сколько ждать
+    private static final long DEFAULT_COOLDOWN_MILLIS = 1000;
+
+    private final String url;
+    private final String apiKey;
+    private final CircuitBreaker breaker;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // Остатки лимитов и моменты (System.nanoTime) их восстановления; -1 - сервер не сообщил остаток
+    private volatile long remainingRequests = -1;
+    private volatile long remainingTokens = -1;
+    private volatile long requestsResetAt;
+    private volatile long tokensResetAt;
+    private volatile long cooldownUntil = System.nanoTime();
+
+    ApiEndpoint(String url, String apiKey, CircuitBreaker breaker) {
+        this.url = url;
+        this.apiKey = apiKey;
+        this.breaker = breaker;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    String getApiKey() {
+        return apiKey;
+    }
+
+    CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return количество вызовов, выполняющихся через эту пару
+     */
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    void acquired() {
+        outstanding.incrementAndGet();
+    }
+
+    void released() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Проверяет, можно ли сейчас отправить вызов через эту пару: ключ не на паузе после 429, лимиты не исчерпаны,
+     * выключатель разрешает вызов.
+     * @param now текущее System.nanoTime()
+     * @return true, если пара доступна
+     */
+    boolean isAvailable(long now) {
+        return waitNanos(now) == 0 && breaker.isCallPermitted();
+    }
+
+    /**
+     * @param now текущее System.nanoTime()
+     * @return сколько наносекунд осталось до того, как пара снова станет доступна по лимитам
+     */
+    long waitNanos(long now) {
+        long until = cooldownUntil;
+        if (remainingRequests == 0) {
+            until = Math.max(until, requestsResetAt);
+        }
+        if (remainingTokens == 0) {
+            until = Math.max(until, tokensResetAt);
+        }
+        long wait = Math.max(until - now, breaker.getRetryAfterMillis() * 1_000_000L);
+        return Math.max(0, wait);
+    }
+
+    /**
+     * Обновляет остатки лимитов по заголовкам ответа. После ответа 429 ключ ставится на паузу.
+     * @param response ответ API
+     */
+    void update(Response response) {
+        long now = System.nanoTime();
+        String requests = response.header("x-ratelimit-remaining-requests");
+        if (requests != null) {
+            remainingRequests = parseLong(requests);
+            requestsResetAt = now + resetNanos(response.header("x-ratelimit-reset-requests"));
+        }
+        String tokens = response.header("x-ratelimit-remaining-tokens");
+        if (tokens != null) {
+            remainingTokens = parseLong(tokens);
+            tokensResetAt = now + resetNanos(response.header("x-ratelimit-reset-tokens"));
+        }
+        if (response.code() == 429) {
+            long wait = OpenAIApiException.retryAfterMillis(response.header("Retry-After"));
+            if (wait < 0) {
+                wait = DEFAULT_COOLDOWN_MILLIS;
+            }
+            cooldownUntil = now + wait * 1_000_000L;
+            log.warn("Ключ {}... для {} исчерпал лимит, пауза {} мс", apiKey.substring(0, Math.min(8, apiKey.length())), url, wait);
+        }
+    }
+
+    private static long resetNanos(String value) {
+        return Math.max(0, OpenAIApiException.durationMillis(value)) * 1_000_000L;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Этот класс представляет автоматический выключатель вызовов API OpenAI. После заданного числа неудач подряд
+ * он размыкается, и вызовы сразу отклоняются, не дожидаясь таймаутов. Когда проходит время ожидания,
+ * пропускается один пробный вызов: успех замыкает выключатель, неудача снова размыкает его.
+ */
+package ru.valkerik.clients;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Slf4j
+public class CircuitBreaker {
+
+    private static final long CLOSED = 0;
+    // пробный вызов уже выполняется
+    private static final long PROBING = -1;
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicInteger failures = new AtomicInteger();
+    // CLOSED, PROBING или момент (System.nanoTime), до которого выключатель разомкнут
+    private final AtomicLong openUntil = new AtomicLong(CLOSED);
+
+    /**
+     * @param failureThreshold количество неудач подряд, после которого выключатель размыкается
+     * @param openMillis сколько выключатель остается разомкнутым перед пробным вызовом
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = openMillis * 1_000_000L;
+    }
+
+    /**
+     * Проверяет, можно ли выполнить вызов. После разрешения вызывающий обязан сообщить результат через
+     * {@link #onSuccess()} или {@link #onFailure()}.
+     * @return true, если вызов разрешен
+     */
+    public boolean tryAcquire() {
+        long state = openUntil.get();
+        if (state == CLOSED) {
+            return true;
+        }
+        // пробный вызов разрешается только одному вызывающему
+        return state != PROBING && System.nanoTime() - state >= 0 && openUntil.compareAndSet(state, PROBING);
+    }
+
+    /**
+     * Проверяет без изменения состояния, разрешил бы выключатель вызов сейчас.
+     * @return true, если выключатель замкнут или пора выполнить пробный вызов
+     */
+    public boolean isCallPermitted() {
+        long state = openUntil.get();
+        return state == CLOSED || (state != PROBING && System.nanoTime() - state >= 0);
+    }
+
+    /**
+     * Сообщает об успешном вызове и замыкает выключатель.
+     */
+    public void onSuccess() {
+        failures.set(0);
+        if (openUntil.getAndSet(CLOSED) != CLOSED) {
+            log.info("OpenAI снова отвечает, выключатель замкнут");
+        }
+    }
+
+    /**
+     * Сообщает о неудачном вызове. Неудача пробного вызова или превышение порога размыкает выключатель.
+     */
+    public void onFailure() {
+        int count = failures.incrementAndGet();
+        long state = openUntil.get();
+        if (state == PROBING || (state == CLOSED && count >= failureThreshold)) {
+            if (openUntil.compareAndSet(state, System.nanoTime() + openNanos)) {
+                log.warn("OpenAI не отвечает ({} неудач подряд), выключатель разомкнут", count);
+            }
+        }
+    }
+
+    /**
+     * @return сколько миллисекунд осталось до пробного вызова или 0, если выключатель замкнут
+     */
+    public long getRetryAfterMillis() {
+        long state = openUntil.get();
+        if (state == CLOSED || state == PROBING) {
+            return 0;
+        }
+        return Math.max(0, (state - System.nanoTime()) / 1_000_000L);
+    }
+
+    /**
+     * @return true, если вызовы сейчас отклоняются
+     */
+    public boolean isOpen() {
+        return openUntil.get() != CLOSED;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Этот класс представляет набор пар адрес API и ключ, между которыми распределяются вызовы. Каждый вызов
+ * уходит в доступную пару с наименьшим числом выполняющихся вызовов; при равенстве пары перебираются по кругу.
+ */
+package ru.valkerik.clients;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class EndpointPool {
+
+    private final List<ApiEndpoint> endpoints;
+    private final AtomicInteger next = new AtomicInteger();
+
+    EndpointPool(List<ApiEndpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No OpenAI endpoints configured");
+        }
+        this.endpoints = List.copyOf(endpoints);
+    }
+
+    /**
+     * Выбирает пару для вызова и учитывает вызов в ней. Вызывающий обязан вернуть пару через
+     * {@link ApiEndpoint#released()} и сообщить результат ее выключателю.
+     * @return выбранная пара
+     * @throws OpenAIApiException, если сейчас недоступна ни одна пара; исключение содержит время ожидания
+     */
+    ApiEndpoint acquire() throws OpenAIApiException {
+        int n = endpoints.size();
+        int start = Math.floorMod(next.getAndIncrement(), n);
+        boolean[] refused = new boolean[n];
+        while (true) {
+            long now = System.nanoTime();
+            int best = -1;
+            for (int i = 0; i < n; i++) {
+                int index = (start + i) % n;
+                ApiEndpoint endpoint = endpoints.get(index);
+                if (!refused[index] && endpoint.isAvailable(now)
+                        && (best < 0 || endpoint.getOutstanding() < endpoints.get(best).getOutstanding())) {
+                    best = index;
+                }
+            }
+            if (best < 0) {
+                throw unavailable(now);
+            }
+            ApiEndpoint endpoint = endpoints.get(best);
+            // пробный вызов мог уже забрать другой поток
+            if (endpoint.getBreaker().tryAcquire()) {
+                endpoint.acquired();
+                return endpoint;
+            }
+            refused[best] = true;
+        }
+    }
+
+    /**
+     * @return true, если хотя бы одна пара доступна прямо сейчас
+     */
+    boolean hasAvailable() {
+        long now = System.nanoTime();
+        for (ApiEndpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true, если выключатели всех пар разомкнуты
+     */
+    boolean isCircuitOpen() {
+        for (ApiEndpoint endpoint : endpoints) {
+            if (!endpoint.getBreaker().isOpen()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        return endpoints.size();
+    }
+
+    private OpenAIApiException unavailable(long now) {
+        long wait = Long.MAX_VALUE;
+        for (ApiEndpoint endpoint : endpoints) {
+            wait = Math.min(wait, endpoint.waitNanos(now));
+        }
+        if (isCircuitOpen()) {
+            // вызов отклоняется сразу, а пользователю сообщается, когда ближайший выключатель пропустит пробный вызов
+            long probe = Long.MAX_VALUE;
+            for (ApiEndpoint endpoint : endpoints) {
+                probe = Math.min(probe, endpoint.getBreaker().getRetryAfterMillis());
+            }
+            return new OpenAIApiException("OpenAI circuit breaker is open", OpenAIApiException.CIRCUIT_OPEN, probe);
+        }
+        return new OpenAIApiException("All OpenAI keys are rate limited", 429, wait / 1_000_000L);
+    }
+}
@@ -2,20 +2,52 @@
  * Этот класс представляет клиент, который взаимодействует с API OpenAI для получения ответа в чате.
  */
 package ru.valkerik.clients;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import org.springframework.beans.factory.annotation.Autowired;
 import ru.valkerik.model.request.ChatRequest;
 import ru.valkerik.model.response.ChatResponse;
+import ru.valkerik.model.response.Choice;
+import ru.valkerik.model.response.Message;
+import ru.valkerik.model.response.Usage;
+import ru.valkerik.services.Metrics;
+import ru.valkerik.utils.RequestHasher;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.OkHttpClient;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
+@Slf4j
 @Service
 public class OpenAIApiClient {
 
@@ -24,38 +56,484 @@ public class OpenAIApiClient {
     private String apiKey;
     @Value("${openai.url}")
     private String url;
+    @Value("${openai.coalescing.enabled:true}")
+    private boolean coalescing;
+    @Value("${openai.retry.max:3}")
+    private int maxRetries;
+    @Value("${openai.retry.base.ms:500}")
+    private long retryBaseDelayMillis;
+    @Value("${openai.retry.max.ms:20000}")
+    private long maxRetryDelayMillis;
+    @Value("${openai.deadline.seconds:120}")
+    private long deadlineSeconds;
+    @Value("${openai.breaker.failures:5}")
+    private int breakerFailures;
+    @Value("${openai.breaker.open.seconds:30}")
+    private long breakerOpenSeconds;
+    @Autowired
+    private ObjectMapper mapper;
+    @Autowired
+    private Environment env;
+    @Autowired
+    private Metrics metrics;
     private OkHttpClient client;
+    private EndpointPool endpoints;
+    // Запросы, которые сейчас выполняются: ключ запроса -> его будущий ответ
+    private final ConcurrentHashMap<String, CompletableFuture<ChatResponse>> inFlight = new ConcurrentHashMap<>();
+    // Потоковые запросы, которые сейчас выполняются: ключ запроса -> поток, к которому можно присоединиться
+    private final ConcurrentHashMap<String, SharedStream> inFlightStreams = new ConcurrentHashMap<>();
+    private final LongAdder coalescedCalls = new LongAdder();
+    // Выполняющиеся HTTP-вызовы вместе с паузами между повторами
+    private final AtomicInteger pendingCalls = new AtomicInteger();
+    // Потоки, в которых завершаются будущие ответы: зависимые этапы (контекст, журнал, отправка ответа)
+    // не должны занимать поток OkHttp и место вызова в диспетчере
+    private ExecutorService completions;
 
     /**
-     *  Инициализирует OkHttpClient с таймаутом 50 секунд для каждой операции.
+     *  Инициализирует OkHttpClient с таймаутом 50 секунд для каждой операции. Диспетчер OkHttp не ограничивает
+     *  число вызовов: сколько вызовов выполняется одновременно, решает FairAdmission в GptService, и второй
+     *  предел здесь только ставил бы допущенные вызовы в очередь без учета чатов.
      */
     @PostConstruct
     private void init() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Integer.MAX_VALUE);
+        dispatcher.setMaxRequestsPerHost(Integer.MAX_VALUE);
         this.client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
                 .connectTimeout(50, TimeUnit.SECONDS)
                 .writeTimeout(50, TimeUnit.SECONDS)
                 .readTimeout(50, TimeUnit.SECONDS)
                 .build();
+        this.endpoints = new EndpointPool(loadEndpoints());
+        AtomicInteger counter = new AtomicInteger();
+        this.completions = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread thread = new Thread(r, "openai-completion-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("Адресов и ключей OpenAI: {}", endpoints.size());
+        metrics.gauge("openai_in_flight", pendingCalls::get);
+        // 1, пока выключатели всех пар разомкнуты и вызовы отклоняются без обращения к API
+        metrics.gauge("openai_circuit_open", () -> endpoints.isCircuitOpen() ? 1 : 0);
     }
 
     /**
-     * Отправляет запрос чата в API OpenAI и возвращает ответ чата.
+     * Останавливает потоки завершения ответов и диспетчера OkHttp и закрывает простаивающие соединения.
+     */
+    @PreDestroy
+    private void dispose() {
+        completions.shutdown();
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    /**
+     * Читает пары адрес и ключ openai.endpoint.1.apikey, openai.endpoint.1.url, openai.endpoint.2.apikey...
+     * Адрес пары по умолчанию - openai.url. Если пар нет, используется единственная пара openai.url и openai.apikey.
+     * @return пары адрес и ключ, у каждой свой автоматический выключатель
+     */
+    private List<ApiEndpoint> loadEndpoints() {
+        List<ApiEndpoint> list = new ArrayList<>();
+        int i = 1;
+        while (env.containsProperty("openai.endpoint." + i + ".apikey")) {
+            list.add(new ApiEndpoint(env.getProperty("openai.endpoint." + i + ".url", url),
+                    env.getProperty("openai.endpoint." + i + ".apikey"),
+                    new CircuitBreaker(breakerFailures, breakerOpenSeconds * 1000)));
+            i++;
+        }
+        if (list.isEmpty()) {
+            list.add(new ApiEndpoint(url, apiKey, new CircuitBreaker(breakerFailures, breakerOpenSeconds * 1000)));
+        }
+        return list;
+    }
+
+    /**
+     * Асинхронно отправляет запрос чата в API OpenAI, не занимая поток вызывающего. Если точно такой же запрос
+     * уже выполняется, новый HTTP-вызов не делается: вызывающий получает ответ на выполняющийся запрос. В копии
+     * ответа, которую получает такой вызывающий, usage не заполняется, чтобы токены не учитывались дважды.
+     * @return будущий ответ чата.
+     * @return будущий ответ чата; завершается с RejectedExecutionException, если очередь запросов заполнена.
+     */
+    public CompletableFuture<ChatResponse> getCompletionAsync(ChatRequest chatRequest) {
+        if (!coalescing) {
+            return execute(chatRequest, null);
+        }
+        String key = RequestHasher.hash(chatRequest) + ":" + chatRequest.getMaxTokens();
+        CompletableFuture<ChatResponse> call = new CompletableFuture<>();
+        CompletableFuture<ChatResponse> running = inFlight.putIfAbsent(key, call);
+        if (running != null) {
+            coalescedCalls.increment();
+            return running.thenApply(OpenAIApiClient::shared);
+        }
+        execute(chatRequest, null).whenComplete((response, error) -> {
+            inFlight.remove(key, call);
+            if (error != null) {
+                call.completeExceptionally(error);
+            } else {
+                call.complete(response);
+            }
+        });
+        return call;
+    }
+
+    /**
+     * @return количество HTTP-вызовов, сэкономленных объединением одинаковых запросов.
+     */
+    public long getCoalescedCalls() {
+        return coalescedCalls.sum();
+    }
+
+    /**
+     * @return количество выполняющихся вызовов API OpenAI, включая паузы между повторами.
+     */
+    public int getPendingCalls() {
+        return pendingCalls.get();
+    }
+
+    /**
+     * Копия запроса с флагами потоковой передачи. Запрос вызывающего не меняется: его можно снова отправить
+     * обычным вызовом или использовать как ключ кэша.
+     */
+    private static ChatRequest streaming(ChatRequest request) {
+        ChatRequest copy = new ChatRequest()
+                .withModel(request.getModel())
+                .withMessages(request.getMessages())
+                .withMaxTokens(request.getMaxTokens())
+                .withTemperature(request.getTemperature());
+        request.getAdditionalProperties().forEach(copy::setAdditionalProperty);
+        return copy.withAdditionalProperty("stream", true)
+                .withAdditionalProperty("stream_options", Map.of("include_usage", true));
+    }
+
+    /**
+     * Копия ответа для присоединившегося вызывающего, без usage.
+     */
+    private static ChatResponse shared(ChatResponse response) {
+        return new ChatResponse()
+                .withId(response.getId())
+                .withObject(response.getObject())
+                .withCreated(response.getCreated())
+                .withModel(response.getModel())
+                .withChoices(response.getChoices());
+    }
+
+    /**
+     * Выполняет HTTP-вызов API OpenAI. Число одновременных вызовов здесь не ограничивается: вызывающий уже
+     * получил допуск FairAdmission. Временные ошибки повторяются, пока не истечет openai.deadline.seconds.
+     * @param chatRequest запрос на отправку чата.
+     * @param onDelta получатель фрагментов в потоковом режиме или null для обычного ответа.
+     * @return будущий ответ чата.
+     */
+    private CompletableFuture<ChatResponse> execute(ChatRequest chatRequest, Consumer<String> onDelta) {
+        CompletableFuture<ChatResponse> future = new CompletableFuture<>();
+        pendingCalls.incrementAndGet();
+        AtomicReference<Call> current = new AtomicReference<>();
+        future.whenComplete((response, error) -> {
+            pendingCalls.decrementAndGet();
+            // отмена будущего ответа отменяет и HTTP-вызов
+            Call call = current.get();
+            if (future.isCancelled() && call != null) {
+                call.cancel();
+            }
+        });
+        attempt(chatRequest, onDelta, System.nanoTime() + deadlineSeconds * 1_000_000_000L, 0, current, future);
+        return future;
+    }
+
+    /**
+     * Выполняет одну попытку вызова API OpenAI.
      * @param chatRequest запрос на отправку чата.
-     * @return ответ чата от OpenAI API.
-     * @throws Exception, если ответ не удался или возникла проблема с запросом.
-     */
-    public ChatResponse getCompletion(ChatRequest chatRequest) throws Exception {
-        ObjectMapper mapper = new ObjectMapper();
-        RequestBody body = RequestBody.create(mapper.writeValueAsString(chatRequest), JSON);
-        Request request = new Request.Builder()
-                .url(url)
+     * @param onDelta получатель фрагментов в потоковом режиме или null для обычного ответа.
+     * @param deadline момент (System.nanoTime), после которого попыток больше не будет.
+     * @param attempt номер попытки, начиная с 0.
+     * @param current текущий HTTP-вызов, чтобы его можно было отменить.
+     * @param future будущий ответ чата.
+     */
+    private void attempt(ChatRequest chatRequest, Consumer<String> onDelta, long deadline, int attempt,
+                         AtomicReference<Call> current, CompletableFuture<ChatResponse> future) {
+        if (future.isDone()) {
+            return;
+        }
+        ApiEndpoint endpoint;
+        try {
+            endpoint = endpoints.acquire();
+        } catch (OpenAIApiException e) {
+            if (e.isCircuitOpen()) {
+                // выключатели всех пар разомкнуты: отказываем сразу, а не ждем пробного вызова
+                fail(future, e);
+                return;
+            }
+            // все ключи на паузе: ждем, сколько сказали серверы, если это успеет до крайнего срока
+            retryOrFail(e, chatRequest, onDelta, deadline, attempt, false, current, future);
+            return;
+        }
+        Request.Builder request = new Request.Builder()
+                .url(endpoint.getUrl())
                 .addHeader("Content-Type", "application/json")
-                .addHeader("Authorization", "Bearer " + apiKey)
-                .post(body)
-                .build();
-        Response response = client.newCall(request).execute();
-        if (!response.isSuccessful()) throw new Exception("Unexpected code " + response);
-        ChatResponse chatResponse = mapper.readValue(response.body().string(), ChatResponse.class);
+                .addHeader("Authorization", "Bearer " + endpoint.getApiKey())
+                .post(jsonBody(chatRequest));
+        // после первого фрагмента, показанного пользователю, повторять потоковый запрос уже нельзя
+        AtomicBoolean emitted = new AtomicBoolean();
+        Consumer<String> sink = null;
+        if (onDelta != null) {
+            request.addHeader("Accept", "text/event-stream");
+            sink = delta -> {
+                emitted.set(true);
+                onDelta.accept(delta);
+            };
+        }
+        Consumer<String> deltas = sink;
+        Call call = client.newCall(request.build());
+        // попытка не может длиться дольше, чем осталось до крайнего срока
+        call.timeout().timeout(Math.max(1, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        current.set(call);
+        long sent = System.nanoTime();
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                metrics.error("openai_attempt_io");
+                endpoint.released();
+                endpoint.getBreaker().onFailure();
+                retryOrFail(e, chatRequest, onDelta, deadline, attempt, emitted.get(), current, future);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                // время до заголовков ответа; для потокового ответа это время до начала потока
+                metrics.record("openai_round_trip", sent);
+                endpoint.update(response);
+                ChatResponse result = null;
+                Exception failure = null;
+                boolean retry = false;
+                // Ответ закрывается в любом случае, иначе соединение не возвращается в пул
+                try (response) {
+                    if (!response.isSuccessful()) throw OpenAIApiException.of(response);
+                    long body = System.nanoTime();
+                    ChatResponse chatResponse = deltas == null
+                            ? mapper.readValue(response.body().byteStream(), ChatResponse.class)
+                            : readStream(response.body().source(), deltas);
+                    metrics.record(deltas == null ? "openai_json_parse" : "openai_stream", body);
+                    endpoint.getBreaker().onSuccess();
+                    result = chatResponse;
+                } catch (OpenAIApiException e) {
+                    metrics.error("openai_attempt_" + e.getStatusCode());
+                    // ошибка клиента означает, что сервер работает
+                    if (e.getStatusCode() >= 500) {
+                        endpoint.getBreaker().onFailure();
+                    } else {
+                        endpoint.getBreaker().onSuccess();
+                    }
+                    failure = e;
+                    retry = true;
+                } catch (JsonProcessingException e) {
+                    // ответ пришел целиком, но не разобран: повтор не поможет
+                    endpoint.getBreaker().onSuccess();
+                    failure = e;
+                } catch (IOException e) {
+                    // обрыв во время чтения ответа
+                    metrics.error("openai_attempt_io");
+                    endpoint.getBreaker().onFailure();
+                    failure = e;
+                    retry = true;
+                } catch (Exception e) {
+                    endpoint.getBreaker().onSuccess();
+                    failure = e;
+                } finally {
+                    endpoint.released();
+                }
+                // будущий ответ завершается, когда соединение уже закрыто и пара освобождена
+                if (failure == null) {
+                    succeed(future, result);
+                } else if (retry) {
+                    retryOrFail(failure, chatRequest, onDelta, deadline, attempt, emitted.get(), current, future);
+                } else {
+                    fail(future, failure);
+                }
+            }
+        });
+    }
+
+    /**
+     * Повторяет временную ошибку с экспоненциальной задержкой и случайным разбросом (не меньше времени,
+     * которое назвал сервер), если попытки не исчерпаны и повтор успеет до крайнего срока. Иначе завершает
+     * будущий ответ ошибкой.
+     */
+    private void retryOrFail(Exception error, ChatRequest chatRequest, Consumer<String> onDelta, long deadline,
+                             int attempt, boolean emitted, AtomicReference<Call> current,
+                             CompletableFuture<ChatResponse> future) {
+        boolean retryable = error instanceof OpenAIApiException
+                ? ((OpenAIApiException) error).isRetryable()
+                : error instanceof IOException;
+        if (future.isDone() || !retryable || emitted || attempt >= maxRetries) {
+            fail(future, error);
+            return;
+        }
+        long cap = Math.min(maxRetryDelayMillis, retryBaseDelayMillis << Math.min(attempt, 20));
+        long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+        // ждать, сколько сказал сервер, нужно, только если другого доступного ключа нет
+        if (error instanceof OpenAIApiException && !endpoints.hasAvailable()) {
+            delay = Math.max(delay, ((OpenAIApiException) error).getRetryAfterMillis());
+        }
+        if (System.nanoTime() + delay * 1_000_000L >= deadline) {
+            fail(future, error);
+            return;
+        }
+        log.warn("Попытка {} вызова OpenAI не удалась ({}), повтор через {} мс", attempt + 1, error.getMessage(), delay);
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(
+                () -> attempt(chatRequest, onDelta, deadline, attempt + 1, current, future));
+    }
+
+    /**
+     * Завершает будущий ответ в потоке completions: его зависимые этапы выполняются там же, а не в потоке OkHttp.
+     */
+    private void succeed(CompletableFuture<ChatResponse> future, ChatResponse response) {
+        try {
+            completions.execute(() -> future.complete(response));
+        } catch (RejectedExecutionException e) {
+            // клиент уже остановлен, ответ отдается в текущем потоке
+            future.complete(response);
+        }
+    }
+
+    private void fail(CompletableFuture<ChatResponse> future, Throwable error) {
+        try {
+            completions.execute(() -> future.completeExceptionally(error));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Создает тело запроса, которое сериализует объект прямо в поток HTTP-запроса, без промежуточной строки.
+     * @param value объект для сериализации в JSON.
+     * @return тело запроса.
+     */
+    private RequestBody jsonBody(Object value) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                mapper.writeValue(sink.outputStream(), value);
+            }
+        };
+    }
+
+    /**
+     * Асинхронно отправляет запрос чата в режиме потоковой передачи (server-sent events) и передает фрагменты ответа
+     * по мере их поступления. Фрагменты передаются получателю в потоке OkHttp, который читает ответ. Одинаковые потоковые запросы объединяются так же, как обычные:
+     * присоединившийся получатель сначала получает одним фрагментом уже пришедший текст, а затем остальные фрагменты.
+     * @param request запрос на отправку чата; флаги потоковой передачи добавляются к его копии.
+     * @param onDelta получатель очередного фрагмента текста ответа.
+     * @return будущий собранный ответ чата.
+     */
+    public CompletableFuture<ChatResponse> getCompletionStreamAsync(ChatRequest request, Consumer<String> onDelta) {
+        ChatRequest chatRequest = streaming(request);
+        if (!coalescing) {
+            return execute(chatRequest, onDelta);
+        }
+        String key = RequestHasher.hash(chatRequest) + ":" + chatRequest.getMaxTokens();
+        SharedStream stream = new SharedStream(onDelta);
+        SharedStream running = inFlightStreams.putIfAbsent(key, stream);
+        if (running != null) {
+            if (running.join(onDelta)) {
+                coalescedCalls.increment();
+                return running.future.thenApply(OpenAIApiClient::shared);
+            }
+            // поток уже закончился и вот-вот уйдет из карты, такой запрос выполняется отдельно
+            return execute(chatRequest, onDelta);
+        }
+        execute(chatRequest, stream::emit).whenComplete((response, error) -> {
+            inFlightStreams.remove(key, stream);
+            stream.close();
+            if (error != null) {
+                stream.future.completeExceptionally(error);
+            } else {
+                stream.future.complete(response);
+            }
+        });
+        return stream.future;
+    }
+
+    /**
+     * Читает поток server-sent events и собирает из фрагментов полный ответ.
+     */
+    private ChatResponse readStream(BufferedSource source, Consumer<String> onDelta) throws IOException {
+        StringBuilder content = new StringBuilder();
+        ChatResponse chatResponse = new ChatResponse();
+        Choice choice = new Choice().withIndex(0);
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            // Каждое событие приходит строкой "data: {...}", поток завершается строкой "data: [DONE]"
+            if (!line.startsWith("data:")) {
+                continue;
+            }
+            String data = line.substring(5).trim();
+            if (data.equals("[DONE]")) {
+                break;
+            }
+            JsonNode chunk = mapper.readTree(data);
+            chatResponse.setId(chunk.path("id").asText(null));
+            chatResponse.setModel(chunk.path("model").asText(null));
+            if (chunk.hasNonNull("usage")) {
+                chatResponse.setUsage(mapper.treeToValue(chunk.get("usage"), Usage.class));
+            }
+            JsonNode first = chunk.path("choices").path(0);
+            String delta = first.path("delta").path("content").asText("");
+            if (!delta.isEmpty()) {
+                content.append(delta);
+                onDelta.accept(delta);
+            }
+            if (first.hasNonNull("finish_reason")) {
+                choice.setFinishReason(first.get("finish_reason").asText());
+            }
+        }
+        choice.setMessage(new Message().withRole("assistant").withContent(content.toString()));
+        chatResponse.setChoices(List.of(choice));
         return chatResponse;
     }
+
+    /**
+     * Потоковый ответ, который получают все одинаковые запросы: каждый фрагмент рассылается всем получателям.
+     */
+    private static final class SharedStream {
+        private final CompletableFuture<ChatResponse> future = new CompletableFuture<>();
+        private final List<Consumer<String>> receivers = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        private boolean closed;
+
+        SharedStream(Consumer<String> first) {
+            receivers.add(first);
+        }
+
+        synchronized void emit(String delta) {
+            text.append(delta);
+            for (Consumer<String> receiver : receivers) {
+                receiver.accept(delta);
+            }
+        }
+
+        /**
+         * @param receiver получатель фрагментов присоединившегося запроса
+         * @return false, если поток уже закончился
+         */
+        synchronized boolean join(Consumer<String> receiver) {
+            if (closed) {
+                return false;
+            }
+            if (text.length() > 0) {
+                receiver.accept(text.toString());
+            }
+            receivers.add(receiver);
+            return true;
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+    }
 }
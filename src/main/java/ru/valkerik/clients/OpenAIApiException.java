@@ -0,0 +1,123 @@
+/**
+ * Этот класс представляет неуспешный ответ API OpenAI. Он хранит код статуса и время, через которое сервер
+ * разрешил повторить запрос (заголовки Retry-After и x-ratelimit-reset-*), если он его сообщил.
+ */
+package ru.valkerik.clients;
+
+import okhttp3.Response;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class OpenAIApiException extends Exception {
+
+    // Код, которым помечается отказ без обращения к API, когда автоматический выключатель разомкнут
+    public static final int CIRCUIT_OPEN = 0;
+
+    // Длительности в заголовках x-ratelimit-reset-*, например 20ms, 1s, 6m0s
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|s|m|h)");
+
+    private final int statusCode;
+    private final long retryAfterMillis;
+
+    public OpenAIApiException(String message, int statusCode, long retryAfterMillis) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Создает исключение по неуспешному ответу API.
+     * @param response ответ с кодом, отличным от 2xx
+     * @return исключение с кодом статуса и временем ожидания из заголовков
+     */
+    public static OpenAIApiException of(Response response) {
+        long retryAfter = retryAfterMillis(response.header("Retry-After"));
+        if (retryAfter < 0 && response.code() == 429) {
+            // без Retry-After ждем восстановления того лимита, который закончился
+            retryAfter = Math.max(durationMillis(response.header("x-ratelimit-reset-requests")),
+                    durationMillis(response.header("x-ratelimit-reset-tokens")));
+        }
+        return new OpenAIApiException("Unexpected code " + response, response.code(), retryAfter);
+    }
+
+    /**
+     * @return код статуса HTTP или {@link #CIRCUIT_OPEN}
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return true, если вызов отклонен разомкнутым выключателем без обращения к API
+     */
+    public boolean isCircuitOpen() {
+        return statusCode == CIRCUIT_OPEN;
+    }
+
+    /**
+     * @return через сколько миллисекунд сервер разрешил повторить запрос, или -1, если он этого не сообщил
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * @return true, если запрос имеет смысл повторить: превышен лимит, таймаут или временная ошибка сервера.
+     * Отказ разомкнутого выключателя не повторяется: выключатель пропустит пробный вызов не раньше, чем через
+     * openai.breaker.open.seconds, и ждать его нет смысла
+     */
+    public boolean isRetryable() {
+        return statusCode == 408 || statusCode == 409 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Разбирает заголовок Retry-After: количество секунд или дата HTTP.
+     * @param value значение заголовка или null
+     * @return время ожидания в миллисекундах или -1
+     */
+    static long retryAfterMillis(String value) {
+        if (value == null || value.isBlank()) {
+            return -1;
+        }
+        try {
+            return (long) (Double.parseDouble(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(at.getZone()), at).toMillis());
+            } catch (DateTimeParseException ignored) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Разбирает длительность вида 1m30s или 250ms из заголовков x-ratelimit-reset-*.
+     * @param value значение заголовка или null
+     * @return длительность в миллисекундах или -1
+     */
+    static long durationMillis(String value) {
+        if (value == null || value.isBlank()) {
+            return -1;
+        }
+        Matcher matcher = DURATION_PART.matcher(value);
+        double millis = 0;
+        boolean found = false;
+        while (matcher.find()) {
+            found = true;
+            double amount = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "ms": millis += amount; break;
+                case "s": millis += amount * 1000; break;
+                case "m": millis += amount * 60_000; break;
+                default: millis += amount * 3_600_000; break;
+            }
+        }
+        return found ? (long) Math.ceil(millis) : -1;
+    }
+}
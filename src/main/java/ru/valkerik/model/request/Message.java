@@ -24,6 +24,8 @@ public class Message {
     @JsonProperty("content")
     private String content;
     @JsonIgnore
+    private Integer tokens;
+    @JsonIgnore
     private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
     @JsonProperty("role")
@@ -56,6 +58,21 @@ public class Message {
         return this;
     }
 
+    @JsonIgnore
+    public Integer getTokens() {
+        return tokens;
+    }
+
+    @JsonIgnore
+    public void setTokens(Integer tokens) {
+        this.tokens = tokens;
+    }
+
+    public Message withTokens(Integer tokens) {
+        this.tokens = tokens;
+        return this;
+    }
+
     @JsonAnyGetter
     public Map<String, Object> getAdditionalProperties() {
         return this.additionalProperties;
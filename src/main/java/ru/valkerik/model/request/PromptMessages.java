@@ -0,0 +1,66 @@
+package ru.valkerik.model.request;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Список сообщений запроса, составленный из общего префикса и сообщений конкретного разговора без копирования.
+ * При сериализации префикс записывается готовыми байтами, а сериализуются только сообщения разговора.
+ */
+@JsonSerialize(using = PromptMessages.Serializer.class)
+public class PromptMessages extends AbstractList<Message> implements RandomAccess {
+
+    private final PromptPrefix prefix;
+    private final List<Message> tail;
+
+    public PromptMessages(PromptPrefix prefix, List<Message> tail) {
+        this.prefix = prefix;
+        this.tail = tail;
+    }
+
+    public PromptPrefix getPrefix() {
+        return prefix;
+    }
+
+    public List<Message> getTail() {
+        return tail;
+    }
+
+    @Override
+    public Message get(int index) {
+        int prefixSize = prefix.getMessages().size();
+        return index < prefixSize ? prefix.getMessages().get(index) : tail.get(index - prefixSize);
+    }
+
+    @Override
+    public int size() {
+        return prefix.getMessages().size() + tail.size();
+    }
+
+    public static class Serializer extends StdSerializer<PromptMessages> {
+
+        public Serializer() {
+            super(PromptMessages.class);
+        }
+
+        @Override
+        public void serialize(PromptMessages value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartArray(value, value.size());
+            if (!value.prefix.isEmpty()) {
+                // весь префикс записывается как одно готовое значение, разделители генератор расставит сам
+                gen.writeRawValue(value.prefix.getJson());
+            }
+            for (Message message : value.tail) {
+                provider.defaultSerializeValue(message, gen);
+            }
+            gen.writeEndArray();
+        }
+    }
+}
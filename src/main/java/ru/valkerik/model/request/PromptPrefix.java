@@ -0,0 +1,73 @@
+package ru.valkerik.model.request;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Неизменяемое начало списка сообщений запроса: системная подсказка и, при необходимости, примеры.
+ * Строится один раз при запуске и используется всеми запросами. Сообщения заранее сериализованы в JSON,
+ * эти байты вставляются в тело запроса без повторной сериализации, а количество токенов посчитано заранее.
+ */
+public final class PromptPrefix {
+
+    private final List<Message> messages;
+    private final SerializedString json;
+    private final int tokens;
+
+    private PromptPrefix(List<Message> messages, SerializedString json, int tokens) {
+        this.messages = messages;
+        this.json = json;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Строит префикс из сообщений.
+     * @param mapper ObjectMapper для сериализации
+     * @param counter функция подсчета токенов сообщения
+     * @param messages сообщения префикса, после построения они не должны изменяться
+     * @return префикс запроса
+     * @throws JsonProcessingException, если сообщение не удалось сериализовать
+     */
+    public static PromptPrefix of(ObjectMapper mapper, ToIntFunction<Message> counter, List<Message> messages)
+            throws JsonProcessingException {
+        StringBuilder json = new StringBuilder();
+        int tokens = 0;
+        for (Message message : messages) {
+            if (json.length() > 0) {
+                json.append(',');
+            }
+            json.append(mapper.writeValueAsString(message));
+            tokens += counter.applyAsInt(message);
+        }
+        SerializedString serialized = new SerializedString(json.toString());
+        // байты UTF-8 кэшируются внутри SerializedString, вычисляем их сразу
+        serialized.asUnquotedUTF8();
+        return new PromptPrefix(List.copyOf(messages), serialized, tokens);
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return сообщения префикса в виде JSON-элементов массива через запятую, без скобок
+     */
+    public SerializedString getJson() {
+        return json;
+    }
+
+    /**
+     * @return суммарное количество токенов сообщений префикса
+     */
+    public int getTokens() {
+        return tokens;
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+}
@@ -0,0 +1,401 @@
+/**
+ * Этот класс представляет постоянное хранилище разговоров: журнал сообщений только для добавления, отображенный в память.
+ * Каждая запись содержит идентификатор пользователя, время и сообщение; команда сброса записывается как отдельная запись.
+ * При запуске читаются только заголовки записей, чтобы построить индекс, а сами сообщения пользователя
+ * декодируются при его первом обращении. Запись на диск выполняется группами по таймеру, а не после каждого сообщения,
+ * и периодически журнал сжимается: в нем остаются только последние сообщения активных пользователей. Сжатие идет
+ * в фоновом потоке; когда файл заполнен, добавление только расширяет его и планирует сжатие. При остановке журнал
+ * тоже сжимается, поэтому следующий запуск читает заголовки только живых записей, а не всю историю с прошлого сжатия.
+ * История хранится bot.journal.retention.minutes независимо от времени жизни контекстов в памяти, так что
+ * перезапуск после долгого перерыва в разговоре ее не теряет.
+ */
+
+package ru.valkerik.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.valkerik.model.request.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+@Slf4j
+@Service
+public class ConversationJournal {
+
+    private static final int MAGIC = 0x47505431; // "GPT1"
+    private static final int HEADER_SIZE = 8;
+    // длина(4) + crc(4) + userId(8) + время(8) + тип(1)
+    private static final int RECORD_HEADER_SIZE = 25;
+    private static final byte TYPE_MESSAGE = 0;
+    private static final byte TYPE_RESET = 1;
+
+    @Value("${bot.journal.enabled:false}")
+    private boolean enabled;
+    @Value("${bot.journal.file:conversations.journal}")
+    private String fileName;
+    @Value("${bot.journal.initial.size.mb:64}")
+    private int initialSizeMb;
+    @Value("${bot.journal.flush.interval.ms:200}")
+    private long flushIntervalMs;
+    @Value("${bot.journal.compact.interval.minutes:60}")
+    private long compactIntervalMinutes;
+    @Value("${openai.max.message.pool.size}")
+    private int retainPerUser;
+    @Value("${bot.journal.retention.minutes:1440}")
+    private long retentionMinutes;
+
+    private Path path;
+    private FileChannel channel;
+    // Поток записи на диск читает буфер без блокировки, поэтому замена буфера должна быть ему видна
+    private volatile MappedByteBuffer buffer;
+    private int writePosition;
+    private volatile boolean dirty;
+    // Индекс: пользователь -> смещения его последних записей и время последней записи
+    private final Map<Long, UserIndex> index = new HashMap<>();
+    // Количество сбросов с запуска, отметка для append: сообщение хода, начатого до сброса, не записывается
+    private long resets;
+    private boolean compactionScheduled;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Открывает журнал и строит индекс по заголовкам записей, затем запускает фоновую запись на диск и сжатие.
+     */
+    @PostConstruct
+    private void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        this.path = Paths.get(fileName).toAbsolutePath();
+        boolean exists = Files.exists(path);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long capacity = Math.max(channel.size(), (long) initialSizeMb * 1024 * 1024);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (!exists || buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, 1);
+            writePosition = HEADER_SIZE;
+        } else {
+            writePosition = scan();
+        }
+        log.info("Журнал разговоров открыт: {} пользователей, {} байт", index.size(), writePosition);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "conversation-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::compactQuietly, compactIntervalMinutes, compactIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Сжимает журнал, записывает несохраненные данные на диск и закрывает его.
+     */
+    @PreDestroy
+    private synchronized void dispose() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        scheduler.shutdownNow();
+        // если сжать не удалось, журнал остается полным и при запуске просто читается дольше
+        compactQuietly();
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Загружает сохраненную историю пользователя. Если последняя запись старше bot.journal.retention.minutes,
+     * история считается устаревшей.
+     * @param userId идентификатор пользователя
+     * @return сообщения в порядке добавления, возможно пустой список
+     */
+    public synchronized List<Message> load(Long userId) {
+        List<Message> messages = new ArrayList<>();
+        if (!enabled) {
+            return messages;
+        }
+        UserIndex user = index.get(userId);
+        if (user == null || isExpired(user)) {
+            return messages;
+        }
+        for (int offset : user.offsets) {
+            Message message = read(offset);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Добавляет сообщение пользователя в журнал. На диск оно попадет при ближайшей групповой записи.
+     * @param userId идентификатор пользователя
+     * @param message сообщение
+     */
+    public void append(Long userId, Message message) {
+        append(userId, message, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return отметка для {@link #append(Long, Message, long)}, которую ход разговора получает при начале
+     */
+    public synchronized long mark() {
+        return resets;
+    }
+
+    /**
+     * Добавляет сообщение пользователя в журнал, если после отметки контекст пользователя не сбрасывался.
+     * Так ответ, пришедший после /reset, не возвращает в журнал часть сброшенного разговора.
+     * @param userId идентификатор пользователя
+     * @param message сообщение
+     * @param since отметка {@link #mark()}, полученная в начале хода
+     */
+    public synchronized void append(Long userId, Message message, long since) {
+        if (!enabled) {
+            return;
+        }
+        UserIndex user = index.get(userId);
+        if (user != null && user.resetAt > since) {
+            return;
+        }
+        byte[] role = message.getRole().getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getContent() == null ? new byte[0] : message.getContent().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(2 + role.length + content.length);
+        body.putShort((short) role.length).put(role).put(content).flip();
+        int offset = write(userId, TYPE_MESSAGE, body);
+        if (offset >= 0) {
+            index.computeIfAbsent(userId, id -> new UserIndex()).add(offset, retainPerUser, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Записывает сброс контекста пользователя: сохраненная ранее история больше не загружается.
+     * @param userId идентификатор пользователя
+     * @return true, если в журнале была история пользователя
+     */
+    public synchronized boolean reset(Long userId) {
+        if (!enabled) {
+            return false;
+        }
+        UserIndex user = index.get(userId);
+        boolean history = user != null && !user.offsets.isEmpty();
+        if (history && write(userId, TYPE_RESET, ByteBuffer.allocate(0)) < 0) {
+            return true;
+        }
+        // пустой индекс хранит время сброса, пока не устареет, чтобы отбросить ответы ходов, начатых до него
+        UserIndex cleared = new UserIndex();
+        cleared.resetAt = ++resets;
+        cleared.lastTime = System.currentTimeMillis();
+        index.put(userId, cleared);
+        return history;
+    }
+
+    /**
+     * Сжимает журнал: переписывает в новый файл только последние записи пользователей, чья история не устарела,
+     * и атомарно заменяет им старый файл.
+     */
+    public synchronized void compact() throws IOException {
+        compactionScheduled = false;
+        if (!enabled) {
+            return;
+        }
+        long live = HEADER_SIZE;
+        for (UserIndex user : index.values()) {
+            for (int offset : user.offsets) {
+                live += 4 + buffer.getInt(offset);
+            }
+        }
+        long capacity = Math.min(Integer.MAX_VALUE, Math.max((long) initialSizeMb * 1024 * 1024, live * 2));
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        FileChannel newChannel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        newBuffer.putInt(0, MAGIC);
+        newBuffer.putInt(4, 1);
+        int position = HEADER_SIZE;
+        Iterator<UserIndex> users = index.values().iterator();
+        while (users.hasNext()) {
+            UserIndex user = users.next();
+            if (isExpired(user)) {
+                users.remove();
+                continue;
+            }
+            ArrayDeque<Integer> offsets = new ArrayDeque<>();
+            for (int offset : user.offsets) {
+                int size = 4 + buffer.getInt(offset);
+                newBuffer.put(position, buffer, offset, size);
+                offsets.add(position);
+                position += size;
+            }
+            user.offsets = offsets;
+        }
+        newBuffer.force();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        log.info("Журнал разговоров сжат: {} -> {} байт", writePosition, position);
+        this.channel = newChannel;
+        this.buffer = newBuffer;
+        this.writePosition = position;
+    }
+
+    /**
+     * Групповая запись: сбрасывает на диск все изменения, накопленные с прошлого вызова. Выполняется без блокировки
+     * журнала, чтобы добавление не ждало диска; буфер, замененный сжатием, уже записан им на диск.
+     */
+    private void flush() {
+        if (dirty) {
+            dirty = false;
+            buffer.force();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            log.error("Не удалось сжать журнал разговоров: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Пишет запись в конец журнала. Длина записывается последней и служит признаком завершенной записи.
+     * @return смещение записи или -1, если запись не удалась
+     */
+    private int write(Long userId, byte type, ByteBuffer body) {
+        int size = RECORD_HEADER_SIZE + body.remaining();
+        try {
+            ensureCapacity(size + 4);
+        } catch (IOException e) {
+            log.error("Не удалось расширить журнал разговоров: " + e.getMessage());
+            return -1;
+        }
+        MappedByteBuffer buffer = this.buffer;
+        int offset = writePosition;
+        buffer.putLong(offset + 8, userId);
+        buffer.putLong(offset + 16, System.currentTimeMillis());
+        buffer.put(offset + 24, type);
+        buffer.put(offset + RECORD_HEADER_SIZE, body, 0, body.remaining());
+        buffer.putInt(offset + 4, checksum(offset, size));
+        buffer.putInt(offset, size - 4);
+        writePosition += size;
+        dirty = true;
+        return offset;
+    }
+
+    /**
+     * Освобождает место для записи: удваивает файл и планирует сжатие в фоновом потоке, чтобы добавление
+     * на пути ответа не переписывало журнал. Старое и новое отображения делят страницы файла,
+     * поэтому запись на диск нового буфера сохраняет и то, что было записано в старый.
+     */
+    private void ensureCapacity(int size) throws IOException {
+        MappedByteBuffer buffer = this.buffer;
+        if (writePosition + size <= buffer.capacity()) {
+            return;
+        }
+        long capacity = Math.min(Integer.MAX_VALUE, Math.max((long) buffer.capacity() * 2, (long) writePosition + size));
+        if (writePosition + size > capacity) {
+            throw new IOException("journal is full");
+        }
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (!compactionScheduled) {
+            compactionScheduled = true;
+            scheduler.execute(this::compactQuietly);
+        }
+    }
+
+    /**
+     * Читает заголовки всех записей и строит индекс. Тела сообщений не декодируются.
+     * @return позиция конца журнала
+     */
+    private int scan() {
+        int position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_HEADER_SIZE - 4 || position + 4 + length > buffer.capacity()) {
+                break;
+            }
+            long userId = buffer.getLong(position + 8);
+            long time = buffer.getLong(position + 16);
+            if (buffer.get(position + 24) == TYPE_RESET) {
+                index.remove(userId);
+            } else {
+                index.computeIfAbsent(userId, id -> new UserIndex()).add(position, retainPerUser, time);
+            }
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    /**
+     * Декодирует сообщение по смещению, проверяя контрольную сумму.
+     * @return сообщение или null, если запись повреждена
+     */
+    private Message read(int offset) {
+        int size = 4 + buffer.getInt(offset);
+        if (buffer.getInt(offset + 4) != checksum(offset, size)) {
+            log.error("Поврежденная запись журнала разговоров по смещению " + offset);
+            return null;
+        }
+        int roleLength = buffer.getShort(offset + RECORD_HEADER_SIZE);
+        byte[] role = new byte[roleLength];
+        buffer.get(offset + RECORD_HEADER_SIZE + 2, role);
+        byte[] content = new byte[size - RECORD_HEADER_SIZE - 2 - roleLength];
+        buffer.get(offset + RECORD_HEADER_SIZE + 2 + roleLength, content);
+        return new Message()
+                .withRole(new String(role, StandardCharsets.UTF_8))
+                .withContent(new String(content, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Считает CRC32 записи без полей длины и контрольной суммы.
+     */
+    private int checksum(int offset, int size) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset + 8, size - 8));
+        return (int) crc.getValue();
+    }
+
+    private boolean isExpired(UserIndex user) {
+        return System.currentTimeMillis() - user.lastTime > TimeUnit.MINUTES.toMillis(retentionMinutes);
+    }
+
+    /**
+     * Смещения последних записей пользователя. Хранится не больше записей, чем помещается в контекст.
+     */
+    private static class UserIndex {
+        private ArrayDeque<Integer> offsets = new ArrayDeque<>();
+        private long lastTime;
+        // номер последнего сброса пользователя или 0
+        private long resetAt;
+
+        void add(int offset, int retain, long time) {
+            offsets.add(offset);
+            while (offsets.size() > retain) {
+                offsets.poll();
+            }
+            lastTime = time;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Этот класс допускает вызовы API OpenAI взвешенно-справедливо по чатам. Одновременно выполняется не больше
+ * openai.max.concurrent.requests вызовов; остальные ждут в очереди своего чата, и освободившееся место получает
+ * вызов с наименьшим виртуальным временем начала (start-time fair queuing, как в FairUpdateExecutor). Поэтому
+ * группа, приславшая сотню сообщений, получает свою долю вызовов, но не занимает все места и не отодвигает
+ * приватные чаты. Когда ожидающих больше openai.max.queued.requests, отказ получает самый новый вызов самой
+ * длинной очереди, а не тот, кто пришел последним. Ожидание не занимает потоков: допуск - это будущий результат.
+ */
+
+package ru.valkerik.services;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+final class FairAdmission {
+
+    private final int permits;
+    private final int capacity;
+    private final double privateWeight;
+    private final double groupWeight;
+
+    // Очереди чатов, у которых есть ожидающие вызовы
+    private final HashMap<Long, ChatQueue> queues = new HashMap<>();
+    private final PriorityQueue<ChatQueue> ready = new PriorityQueue<>(Comparator.comparingDouble(ChatQueue::headStart));
+    private double virtualTime;
+    private int running;
+    private int waiting;
+
+    /**
+     * @param permits сколько вызовов выполняется одновременно
+     * @param capacity сколько вызовов может ждать допуска
+     * @param privateWeight вес приватного чата
+     * @param groupWeight вес группы
+     */
+    FairAdmission(int permits, int capacity, double privateWeight, double groupWeight) {
+        this.permits = Math.max(1, permits);
+        this.capacity = Math.max(0, capacity);
+        this.privateWeight = privateWeight > 0 ? privateWeight : 1;
+        this.groupWeight = groupWeight > 0 ? groupWeight : 1;
+    }
+
+    /**
+     * Запрашивает допуск вызова. После завершения допущенного вызова нужно вызвать {@link #release()}.
+     * @param chatId чат, от имени которого выполняется вызов
+     * @param group true для группы
+     * @return будущий допуск; завершается RejectedExecutionException, если вызов вытеснен из переполненной очереди
+     */
+    CompletableFuture<Void> acquire(long chatId, boolean group) {
+        CompletableFuture<Void> admission = new CompletableFuture<>();
+        CompletableFuture<Void> shed;
+        synchronized (this) {
+            if (running < permits && waiting == 0) {
+                running++;
+                admission.complete(null);
+                return admission;
+            }
+            ChatQueue queue = queues.computeIfAbsent(chatId, id -> new ChatQueue(id, group ? groupWeight : privateWeight));
+            double start = Math.max(virtualTime, queue.lastFinish);
+            queue.lastFinish = start + 1 / queue.weight;
+            queue.items.add(new Waiter(admission, start));
+            waiting++;
+            if (queue.items.size() == 1) {
+                ready.add(queue);
+            }
+            shed = waiting > capacity ? shedLongest() : null;
+        }
+        if (shed != null) {
+            shed.completeExceptionally(new RejectedExecutionException("Too many OpenAI requests waiting"));
+        }
+        return admission;
+    }
+
+    /**
+     * Освобождает место завершившегося вызова и передает его следующему ожидающему, если он есть.
+     */
+    void release() {
+        Waiter next;
+        synchronized (this) {
+            ChatQueue queue = ready.poll();
+            if (queue == null) {
+                running--;
+                return;
+            }
+            next = queue.items.poll();
+            waiting--;
+            virtualTime = Math.max(virtualTime, next.start);
+            if (queue.items.isEmpty()) {
+                queues.remove(queue.chatId, queue);
+            } else {
+                ready.add(queue);
+            }
+        }
+        // место переходит к следующему вызову, running не меняется
+        next.admission.complete(null);
+    }
+
+    /**
+     * @return сколько вызовов ждут допуска
+     */
+    synchronized int getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * Убирает самый новый вызов из самой длинной очереди. Выполняется только при переполнении.
+     * @return допуск убранного вызова
+     */
+    private CompletableFuture<Void> shedLongest() {
+        ChatQueue longest = null;
+        for (ChatQueue queue : queues.values()) {
+            if (longest == null || queue.items.size() > longest.items.size()) {
+                longest = queue;
+            }
+        }
+        Waiter waiter = longest.items.pollLast();
+        waiting--;
+        // убранный вызов не должен отодвигать следующие вызовы этого чата
+        longest.lastFinish -= 1 / longest.weight;
+        if (longest.items.isEmpty()) {
+            ready.remove(longest);
+            queues.remove(longest.chatId, longest);
+        }
+        return waiter.admission;
+    }
+
+    private static final class ChatQueue {
+        private final long chatId;
+        private final double weight;
+        private final ArrayDeque<Waiter> items = new ArrayDeque<>();
+        // виртуальное время окончания последнего вызова чата
+        private double lastFinish;
+
+        ChatQueue(long chatId, double weight) {
+            this.chatId = chatId;
+            this.weight = weight;
+        }
+
+        double headStart() {
+            return items.peek().start;
+        }
+    }
+
+    private static final class Waiter {
+        private final CompletableFuture<Void> admission;
+        private final double start;
+
+        Waiter(CompletableFuture<Void> admission, double start) {
+            this.admission = admission;
+            this.start = start;
+        }
+    }
+}
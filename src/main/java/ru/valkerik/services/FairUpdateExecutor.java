@@ -0,0 +1,229 @@
+/**
+ * Исполнитель режима fair: у каждого чата своя очередь, а потоки выбирают следующее обновление взвешенно-справедливо
+ * (start-time fair queuing). Каждое обновление получает виртуальное время начала - максимум из текущего виртуального
+ * времени и окончания предыдущего обновления этого чата; окончание отстоит от начала на 1/вес чата. Потоки берут
+ * обновление с наименьшим временем начала, поэтому группа, приславшая сотню сообщений, получает свою долю потоков,
+ * но не задерживает приватные чаты. Обновления одного чата выполняются по очереди, как в режиме partitioned.
+ * Команды идут отдельной очередью, которую потоки проверяют первой; кроме того, у команд есть собственный поток,
+ * так что команда не ждет, даже если все потоки заняты сообщениями. Очередь команд ограничена тем же размером, что
+ * и очередь сообщений: если команд больше, прием обновлений ждет, как и для сообщений. Потоки исполнителя - демоны
+ * и не мешают завершению JVM, если shutdown не был вызван.
+ * Исполнитель упорядочивает только передачу обновлений в обработку: обработка сообщения лишь ставит вызов OpenAI
+ * и сразу освобождает поток. Справедливость самих вызовов OpenAI обеспечивает FairAdmission.
+ */
+
+package ru.valkerik.services;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+@Slf4j
+final class FairUpdateExecutor extends UpdateExecutor {
+
+    private final double privateWeight;
+    private final double groupWeight;
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Потоки сообщений ждут на available, поток команд - на commandAvailable, чтобы сигнал о сообщении
+    // не достался потоку команд, который его не обработает
+    private final Condition available = lock.newCondition();
+    private final Condition commandAvailable = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition commandsNotFull = lock.newCondition();
+    private final ArrayDeque<Runnable> commands = new ArrayDeque<>();
+    // Очереди чатов, у которых есть ожидающие или выполняющиеся обновления
+    private final HashMap<Long, ChatQueue> queues = new HashMap<>();
+    // Чаты, которые ждут потока: очередь не пуста и обновление этого чата сейчас не выполняется
+    private final PriorityQueue<ChatQueue> ready = new PriorityQueue<>(Comparator.comparingDouble(ChatQueue::headStart));
+    private final List<Thread> threads = new ArrayList<>();
+    private double virtualTime;
+    private int queued;
+    private boolean shutdown;
+
+    /**
+     * @param threads количество потоков для сообщений
+     * @param queueSize сколько сообщений и отдельно сколько команд может ждать потока; когда их больше, прием
+     *                  обновлений ждет
+     * @param privateWeight вес приватного чата
+     * @param groupWeight вес группы
+     */
+    FairUpdateExecutor(int threads, int queueSize, double privateWeight, double groupWeight) {
+        this.capacity = Math.max(1, queueSize);
+        this.privateWeight = privateWeight > 0 ? privateWeight : 1;
+        this.groupWeight = groupWeight > 0 ? groupWeight : 1;
+        for (int i = 0; i < threads; i++) {
+            this.threads.add(new Thread(() -> work(false), "bot-worker-" + i));
+        }
+        this.threads.add(new Thread(() -> work(true), "bot-command"));
+        this.threads.forEach(thread -> {
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    @Override
+    void execute(long chatId, boolean group, boolean command, Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Update executor is shut down");
+            }
+            if (command) {
+                while (commands.size() >= capacity && !shutdown) {
+                    commandsNotFull.awaitUninterruptibly();
+                }
+                if (shutdown) {
+                    throw new RejectedExecutionException("Update executor is shut down");
+                }
+                commands.add(task);
+                commandAvailable.signal();
+                available.signal();
+                return;
+            }
+            while (queued >= capacity && !shutdown) {
+                notFull.awaitUninterruptibly();
+            }
+            if (shutdown) {
+                throw new RejectedExecutionException("Update executor is shut down");
+            }
+            ChatQueue queue = queues.computeIfAbsent(chatId, id -> new ChatQueue(id, group ? groupWeight : privateWeight));
+            double start = Math.max(virtualTime, queue.lastFinish);
+            queue.lastFinish = start + 1 / queue.weight;
+            queue.items.add(new Item(task, start));
+            queued++;
+            if (queue.items.size() == 1 && !queue.running) {
+                ready.add(queue);
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Цикл потока: сначала команды, затем обновление чата с наименьшим виртуальным временем начала.
+     * @param commandsOnly true для потока команд
+     */
+    private void work(boolean commandsOnly) {
+        while (true) {
+            Runnable task;
+            ChatQueue queue = null;
+            lock.lock();
+            try {
+                while (commands.isEmpty() && (commandsOnly || ready.isEmpty())) {
+                    if (shutdown && commands.isEmpty() && (commandsOnly || queued == 0)) {
+                        return;
+                    }
+                    (commandsOnly ? commandAvailable : available).awaitUninterruptibly();
+                }
+                if (!commands.isEmpty()) {
+                    task = commands.poll();
+                    commandsNotFull.signal();
+                } else {
+                    queue = ready.poll();
+                    Item item = queue.items.poll();
+                    virtualTime = Math.max(virtualTime, item.start);
+                    queue.running = true;
+                    queued--;
+                    notFull.signal();
+                    task = item.task;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Ошибка обработки обновления: " + e.getMessage(), e);
+            } finally {
+                if (queue != null) {
+                    done(queue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Возвращает чат в число ожидающих, если у него остались обновления, или забывает его.
+     * @param queue очередь чата, обновление которого выполнено
+     */
+    private void done(ChatQueue queue) {
+        lock.lock();
+        try {
+            queue.running = false;
+            if (!queue.items.isEmpty()) {
+                ready.add(queue);
+                available.signal();
+            } else {
+                queues.remove(queue.chatId, queue);
+                if (shutdown && queued == 0) {
+                    available.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void execute(long chatId, Runnable task) {
+        execute(chatId, false, false, task);
+    }
+
+    @Override
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            shutdown = true;
+            available.signalAll();
+            commandAvailable.signalAll();
+            notFull.signalAll();
+            commandsNotFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        }
+    }
+
+    private static final class ChatQueue {
+        private final long chatId;
+        private final double weight;
+        private final ArrayDeque<Item> items = new ArrayDeque<>();
+        // виртуальное время окончания последнего поставленного обновления чата
+        private double lastFinish;
+        private boolean running;
+
+        ChatQueue(long chatId, double weight) {
+            this.chatId = chatId;
+            this.weight = weight;
+        }
+
+        double headStart() {
+            return items.peek().start;
+        }
+    }
+
+    private static final class Item {
+        private final Runnable task;
+        private final double start;
+
+        Item(Runnable task, double start) {
+            this.task = task;
+            this.start = start;
+        }
+    }
+}
@@ -1,6 +1,6 @@
 /**
  * Этот класс предоставляет службу для связи с API OpenAI.
- * и генерировать текст на основе пользовательского ввода. Он использует HashMap для хранения
+ * и генерировать текст на основе пользовательского ввода. Он использует ограниченный кэш для хранения
  * контекст каждого разговора пользователя и белый список для ограничения
  * доступ к боту. Он также предоставляет метод для сброса контекста
  * пользователя.
@@ -8,7 +8,13 @@
 
 package ru.valkerik.services;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.pengrad.telegrambot.model.Chat;
 import com.pengrad.telegrambot.model.Update;
 import jakarta.annotation.PostConstruct;
@@ -19,14 +25,30 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 import ru.valkerik.clients.OpenAIApiClient;
+import ru.valkerik.clients.OpenAIApiException;
 import ru.valkerik.model.request.ChatRequest;
 import ru.valkerik.model.request.Message;
+import ru.valkerik.model.request.PromptMessages;
+import ru.valkerik.model.request.PromptPrefix;
 import ru.valkerik.model.response.ChatResponse;
+import ru.valkerik.model.response.Usage;
 import ru.valkerik.utils.MessageLog;
+import ru.valkerik.utils.RequestHasher;
+import ru.valkerik.utils.TokenCounter;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 @Slf4j
 @Service
@@ -35,6 +57,14 @@ public class GptService {
 
     @Autowired
     private OpenAIApiClient client;
+    @Autowired
+    private ConversationJournal journal;
+    @Autowired
+    private Metrics metrics;
+    @Autowired
+    private TokenUsage usage;
+    @Autowired
+    private QuotaService quotas;
     @Value("${openai.maxtokens}")
     private Integer maxtokens;
     @Value("${openai.model}")
@@ -45,24 +75,81 @@ public class GptService {
     private String systemprompt;
     @Value("${openai.max.message.pool.size}")
     Integer maxMessagePoolSize;
+    @Value("${openai.context.window:4096}")
+    private Integer contextWindow;
+    @Value("${openai.completion.min.tokens:500}")
+    private Integer minCompletionTokens;
     @Value("${bot.presentation}")
     private String presentation;
     @Value("#{'${bot.whitelist:}'.empty ? null : '${bot.whitelist}'.split(',')}")
     private ArrayList<String> whiteList;
     private HashSet<String> whiteSet;
 
-    // UserContext Map, идентификатор пользователя и списком предыдущих сообщений.
-    private HashMap<Long, MessageLog<Message>> userContext = new HashMap<>();
-
-    private ArrayList<String> examples;
+    @Value("${bot.context.ttl.minutes:60}")
+    private long contextTtlMinutes;
+    @Value("${bot.context.max.users:10000}")
+    private long contextMaxUsers;
+    @Value("${bot.context.max.bytes:0}")
+    private long contextMaxBytes;
+
+    // UserContext cache, идентификатор пользователя и списком предыдущих сообщений.
+    // Сообщения одного пользователя обрабатываются по очереди (см. userTurns), а разговоры разных пользователей идут параллельно.
+    // Неактивные контексты вытесняются, такой пользователь начнет заново с примеров, как после /reset.
+    // Контекст, вытесненный из-за ограничения памяти, восстанавливается из журнала разговоров, если он включен.
+    private Cache<Long, MessageLog<Message>> userContext;
+    // Последний поставленный в очередь ход каждого пользователя, следующий ход начинается после его завершения
+    private final ConcurrentHashMap<Long, CompletableFuture<String>> userTurns = new ConcurrentHashMap<>();
+
+    @Value("${openai.cache.enabled:true}")
+    private boolean completionCacheEnabled;
+    @Value("${openai.cache.ttl.minutes:60}")
+    private long completionCacheTtlMinutes;
+    @Value("${openai.cache.max.entries:1000}")
+    private long completionCacheMaxEntries;
+    @Value("${openai.summary.enabled:false}")
+    private boolean summaryEnabled;
+    @Value("${openai.summary.model:${openai.model}}")
+    private String summaryModel;
+    @Value("${openai.summary.threshold.tokens:2000}")
+    private int summaryThreshold;
+    @Value("${openai.summary.keep.messages:4}")
+    private int summaryKeepMessages;
+    @Value("${openai.summary.maxtokens:300}")
+    private int summaryMaxTokens;
+    @Value("${openai.summary.prompt:Summarize the conversation below in a few sentences. Keep names, facts, decisions and open questions the assistant may need later. Answer in the language of the conversation.}")
+    private String summaryPrompt;
+    @Value("${openai.max.concurrent.requests:64}")
+    private int maxConcurrentRequests;
+    @Value("${openai.max.queued.requests:256}")
+    private int maxQueuedRequests;
+    @Value("${bot.worker.weight.private:4}")
+    private double privateWeight;
+    @Value("${bot.worker.weight.group:1}")
+    private double groupWeight;
+    // Допуск вызовов API OpenAI по чатам: шумная группа не занимает все места в очереди вызовов
+    private FairAdmission admission;
+    // Пользователи, для которых сейчас готовится краткое содержание
+    private final Set<Long> summarizing = ConcurrentHashMap.newKeySet();
+
+    // Кэш ответов на запросы без контекста (группы и презентация): хэш запроса -> текст ответа
+    private Cache<String, String> completionCache;
+
+    // Примеры из конфигурации, разобранные один раз
+    private volatile List<Message> examples;
+    // Неизменяемые префиксы запросов: системная подсказка для приватных чатов (примеры там уже в контексте)
+    // и системная подсказка с примерами для групп
+    private volatile PromptPrefix systemPrefix;
+    private volatile PromptPrefix groupPrefix;
 
     @Autowired
     private Environment env;
+    @Autowired
+    private ObjectMapper mapper;
 
-    private Integer ntokens = 0;
+    private TokenCounter tokenCounter;
 
-    public Integer getNumTokens() {
-        return this.ntokens;
+    public long getNumTokens() {
+        return usage.getTotal();
     }
 
     /**
@@ -70,9 +157,21 @@ public class GptService {
      *  используется для инициализации списка примеров и белого списка.
      */
     @PostConstruct
-    private void init(){
-        // Read examples from configuration
-        this.examples = getPropertyList("openai.example");
+    private void init() throws JsonProcessingException {
+        // Локальный токенизатор модели для расчета бюджета контекста
+        this.tokenCounter = new TokenCounter(model);
+        buildPrompt();
+        this.userContext = buildUserContextCache();
+        metrics.gauge("contexts", userContext::estimatedSize);
+        this.admission = new FairAdmission(maxConcurrentRequests, maxQueuedRequests, privateWeight, groupWeight);
+        metrics.gauge("openai_admission_waiting", admission::getWaiting);
+        if (completionCacheEnabled) {
+            this.completionCache = Caffeine.newBuilder()
+                    .expireAfterWrite(Duration.ofMinutes(completionCacheTtlMinutes))
+                    .maximumSize(completionCacheMaxEntries)
+                    .recordStats()
+                    .build();
+        }
         // turn whitelist into a hashset for quicker access
         if(this.whiteList!=null && !this.whiteList.isEmpty()) {
             this.whiteSet = new HashSet<>();
@@ -85,6 +184,77 @@ public class GptService {
 
     }
 
+    /**
+     * Строит системную подсказку и примеры из конфигурации. Вызывается один раз при запуске, конфигурация
+     * приложения во время работы не перезагружается.
+     * @throws JsonProcessingException, если сообщение не удалось сериализовать
+     */
+    private void buildPrompt() throws JsonProcessingException {
+        // Read examples from configuration
+        List<Message> examples = List.copyOf(getExamples(getPropertyList("openai.example")));
+        Message systemMessage = new Message().withRole("system").withContent(systemprompt);
+        List<Message> groupMessages = new ArrayList<>();
+        groupMessages.add(systemMessage);
+        groupMessages.addAll(examples);
+        // префиксы считают токены всех своих сообщений, в том числе примеров, которые попадут в контексты
+        this.systemPrefix = PromptPrefix.of(mapper, tokenCounter::count, List.of(systemMessage));
+        this.groupPrefix = PromptPrefix.of(mapper, tokenCounter::count, groupMessages);
+        this.examples = examples;
+    }
+
+    /**
+     * Создает кэш контекстов пользователей. Контекст вытесняется после bot.context.ttl.minutes без обращений,
+     * а также при превышении bot.context.max.bytes (оценка занимаемой памяти) или, если он не задан,
+     * bot.context.max.users. Просроченные записи удаляются в фоне системным планировщиком.
+     * @return кэш контекстов
+     */
+    private Cache<Long, MessageLog<Message>> buildUserContextCache() {
+        Caffeine<Long, MessageLog<Message>> builder = Caffeine.newBuilder()
+                .expireAfterAccess(Duration.ofMinutes(contextTtlMinutes))
+                .scheduler(Scheduler.systemScheduler())
+                .recordStats()
+                .removalListener((Long userId, MessageLog<Message> context, RemovalCause cause) -> {
+                    if (cause.wasEvicted()) {
+                        log.debug("Контекст пользователя " + userId + " вытеснен: " + cause);
+                    }
+                });
+        if (contextMaxBytes > 0) {
+            builder.maximumWeight(contextMaxBytes)
+                    .weigher((Long userId, MessageLog<Message> context) -> estimateBytes(context));
+        } else {
+            builder.maximumSize(contextMaxUsers);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Грубо оценивает объем памяти, занимаемый контекстом пользователя.
+     * @param context журнал сообщений пользователя
+     * @return оценка в байтах
+     */
+    private static int estimateBytes(MessageLog<Message> context) {
+        int bytes = 64;
+        for (Message message : context) {
+            // объект сообщения со служебными полями плюс до двух байт на символ текста
+            bytes += 96 + (message.getContent() == null ? 0 : 2 * message.getContent().length());
+        }
+        return bytes;
+    }
+
+    /**
+     * @return счетчики попаданий, промахов и вытеснений кэша контекстов
+     */
+    public CacheStats getContextStats() {
+        return userContext.stats();
+    }
+
+    /**
+     * @return приблизительное количество контекстов в памяти
+     */
+    public long getContextSize() {
+        return userContext.estimatedSize();
+    }
+
     /**
      * Этот метод получает список свойств из среды Spring.
      * и возвращает ArrayList строк. Используется для загрузки примеров из конфигурации.
@@ -102,92 +272,472 @@ public class GptService {
     }
 
     /**
-     * Этот метод отправляет сообщение в API OpenAI для создания текстового
-     * ответ на основе пользовательского ввода. Проверяет, авторизован ли пользователь
-     * поговорить с ботом и является ли разговор приватным или нет.
+     * Проверяет, может ли автор сообщения обратиться к боту: есть ли он в списке доступа и не исчерпан ли его лимит.
+     * Разрешенный запрос расходует лимит, поэтому после допуска ответ нужно запросить через {@link #replyAsync}.
      * @param update объект обновления, содержащий пользовательский ввод
-     *  @return текстовый ответ, сгенерированный API OpenAI
+     * @return текст отказа для пользователя или null, если запрос допущен
      */
-    public synchronized String SendMessage(Update update) {
-
-        if(!checkPermission(update)){
+    public String admit(Update update) {
+        long start = System.nanoTime();
+        boolean allowed = checkPermission(update);
+        metrics.record("permission_check", start);
+        if(!allowed){
             return "Извините, но я не могу с вами разговаривать, вас нет в списке доступа.";
         }
+        // Лимиты проверяются до построения запроса, отказ не доходит ни до контекста, ни до API OpenAI
+        QuotaService.Denial denial = quotas.tryAcquire(update.message().from().id(), isPrivate(update) ? null : update.message().chat().id());
+        if (denial != null) {
+            metrics.error("quota_exceeded");
+            return quotaMessage(denial.getLimit()) + " Он восстановится через " + formatWait(denial.getWaitNanos()) + ".";
+        }
+        return null;
+    }
+
+    /**
+     * @param limit исчерпанный лимит
+     * @return отказ для пользователя, из которого понятно, какой лимит исчерпан
+     */
+    private static String quotaMessage(QuotaService.Limit limit) {
+        switch (limit) {
+            case USER_TOKENS:
+                return "Извините, ваш суточный лимит токенов исчерпан.";
+            case CHAT_REQUESTS:
+                return "Извините, лимит запросов к боту в этом чате исчерпан.";
+            case CHAT_TOKENS:
+                return "Извините, суточный лимит токенов в этом чате исчерпан.";
+            default:
+                return "Извините, ваш лимит запросов к боту исчерпан.";
+        }
+    }
 
-        ChatResponse response = null;
+    /**
+     * Запрашивает ответ на сообщение, уже допущенное {@link #admit}. Будущий результат никогда не завершается
+     * исключением, вместо этого он содержит текст с извинением.
+     * @param update объект обновления, содержащий пользовательский ввод
+     * @param onDelta получатель фрагментов ответа или null для обычного запроса
+     * @return будущий текстовый ответ, сгенерированный API OpenAI
+     */
+    public CompletableFuture<String> replyAsync(Update update, Consumer<String> onDelta) {
+        long start = System.nanoTime();
+        CompletableFuture<String> reply;
         try {
+            if(isPrivate(update)) {
+                Long userId = update.message().from().id();
+                reply = enqueueTurn(userId, () -> privateTurn(userId, update, onDelta));
+            } else {
+                // Если это группа, сообщение обрабатывается без какого-либо контекста.
+                reply = completeStateless(buildRequest(update, null), onDelta, update);
+            }
+        } catch (Exception e) {
+            reply = CompletableFuture.failedFuture(e);
+        }
+        reply.whenComplete((text, error) -> metrics.record("completion", start));
+        return reply.exceptionally(error -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            metrics.error(errorCause(cause));
+            if (cause instanceof RejectedExecutionException) {
+                log.warn("Запрос отклонен, очередь запросов к API OpenAI заполнена");
+                return "Извините, сейчас слишком много запросов. Попробуйте еще раз через минуту.";
+            }
+            if (cause instanceof OpenAIApiException
+                    && (((OpenAIApiException) cause).isRetryable() || ((OpenAIApiException) cause).isCircuitOpen())) {
+                // OpenAI перегружен или недоступен, а повторы до крайнего срока не помогли
+                long seconds = Math.max(1, ((OpenAIApiException) cause).getRetryAfterMillis() / 1000);
+                log.warn("OpenAI недоступен: " + cause.getMessage());
+                return "Извините, OpenAI сейчас перегружен. Попробуйте еще раз через " + seconds + " с.";
+            }
+            log.error("Извините, что-то пошло не так. " + "Ошибка: " + cause, cause);
+            return "Извините, что-то пошло не так. " +
+                    "(Идет процесс отладки этой ошибки)";
+        });
+    }
+
+    /**
+     * @param nanos время ожидания в наносекундах
+     * @return время ожидания для пользователя: секунды, минуты или часы с минутами
+     */
+    private static String formatWait(long nanos) {
+        long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(nanos + 999_999_999L));
+        if (seconds < 60) {
+            return seconds + " с";
+        }
+        long minutes = (seconds + 59) / 60;
+        if (minutes < 60) {
+            return minutes + " мин";
+        }
+        return minutes / 60 + " ч " + minutes % 60 + " мин";
+    }
 
-            // Compose new request
-            ObjectMapper mapper = new ObjectMapper();
-            ChatRequest chatRequest = new ChatRequest();
-            chatRequest.setModel(model);
-            chatRequest.setTemperature(temperature);
-            chatRequest.setMaxTokens(maxtokens);
+    /**
+     * @param error причина неудачного ответа
+     * @return метка причины для метрик. Неудачные попытки клиент OpenAI считает сам (openai_attempt_*),
+     * здесь считаются только ответы, которые пользователь не получил, поэтому у меток свой префикс
+     */
+    private static String errorCause(Throwable error) {
+        if (error instanceof RejectedExecutionException) {
+            return "reply_failed_rejected";
+        }
+        if (error instanceof OpenAIApiException) {
+            int status = ((OpenAIApiException) error).getStatusCode();
+            return status == OpenAIApiException.CIRCUIT_OPEN ? "reply_failed_circuit_open" : "reply_failed_" + status;
+        }
+        if (error instanceof IOException) {
+            return "reply_failed_io";
+        }
+        return "reply_failed_internal";
+    }
 
-            // Set up array of messages
-            ArrayList<Message> messages = new ArrayList<>();
-            Message systemMessage = new Message();
+    /**
+     * Ставит ход приватного разговора в очередь пользователя: ход начнется, когда завершится предыдущий,
+     * поэтому контекст остается согласованным, а ожидание не занимает ни одного потока.
+     * @param userId идентификатор пользователя
+     * @param step ход, который меняет контекст пользователя
+     * @return будущий результат хода
+     */
+    private CompletableFuture<String> enqueueTurn(Long userId, Supplier<CompletableFuture<String>> step) {
+        CompletableFuture<Void> start = new CompletableFuture<>();
+        long queued = System.nanoTime();
+        CompletableFuture<String> turn = start.thenCompose(ignored -> {
+            // сколько ход ждал завершения предыдущего хода этого пользователя
+            metrics.record("turn_wait", queued);
+            return step.get();
+        });
+        CompletableFuture<String> previous = userTurns.put(userId, turn);
+        if (previous == null) {
+            start.complete(null);
+        } else {
+            // следующий ход начинается и после неудачного предыдущего
+            previous.whenComplete((text, error) -> start.complete(null));
+        }
+        turn.whenComplete((text, error) -> userTurns.remove(userId, turn));
+        return turn;
+    }
 
-            // System prompt
-            systemMessage.setRole("system");
-            systemMessage.setContent(systemprompt);
-            messages.add(systemMessage);
+    /**
+     * Выполняет один ход приватного разговора: добавляет сообщение пользователя в контекст, запрашивает ответ
+     * и добавляет его в контекст, когда он придет.
+     * @param userId идентификатор пользователя
+     * @param update объект обновления, содержащий пользовательский ввод
+     * @param onDelta получатель фрагментов ответа или null для обычного запроса
+     * @return будущий текстовый ответ
+     */
+    private CompletableFuture<String> privateTurn(Long userId, Update update, Consumer<String> onDelta) {
+        // Если пользователя нет на карте, создаем для него новую запись (примеры добавляются только в первый раз)
+        MessageLog<Message> context = userContext.get(userId, this::newUserContext);
+        // /reset идет быстрой очередью и может прийти, пока ход ждет ответа
+        long since = journal.mark();
+        ChatRequest chatRequest = buildRequest(update, context);
+        return complete(chatRequest, onDelta, update)
+                .thenApply(response -> {
+                    // Если это приватный разговор, добавьте ответ помощника в контекст пользователя.
+                    Message assistantMessage = new Message();
+                    assistantMessage.setRole("assistant");
+                    assistantMessage.setContent(response.getChoices().get(0).getMessage().getContent());
+                    context.add(assistantMessage);
+                    journal.append(userId, assistantMessage, since);
+                    summarizeIfNeeded(userId, context);
+                    // Return text to be sent to the user
+                    return assistantMessage.getContent();
+                })
+                // журнал изменился на месте, повторная запись пересчитывает его вес в кэше,
+                // но не возвращает контекст, сброшенный командой /reset во время запроса
+                .whenComplete((text, error) -> userContext.asMap().replace(userId, context, context));
+    }
 
-            // List of user messages
-            if(isPrivate(update)) {
-                // Если это приватный чат, то мы отправляем ряд предыдущих сообщений для контекста
-                if(!userContext.containsKey(update.message().from().id())) {
-                    // Если пользователя нет на карте, нажмите для него новую запись
-                    userContext.put(update.message().from().id(),new MessageLog<>(maxMessagePoolSize));
-                    // Если есть примеры, добавьте их в контекст (это делается только в первый раз)
-                    if(!this.examples.isEmpty()) {
-                        userContext.get(update.message().from().id()).addAll(getExamples(this.examples));
+    /**
+     * Если контекст пользователя перерос openai.summary.threshold.tokens или заполнен по количеству сообщений,
+     * запрашивает краткое содержание старых ходов у модели openai.summary.model. Запрос идет в фоне, ответ
+     * пользователю его не ждет; краткое содержание заменит старые ходы отдельным шагом в очереди ходов пользователя.
+     * Последние openai.summary.keep.messages сообщений и примеры в начале контекста остаются как есть.
+     * @param userId идентификатор пользователя
+     * @param context контекст пользователя, вызывается внутри его хода
+     */
+    private void summarizeIfNeeded(Long userId, MessageLog<Message> context) {
+        if (!summaryEnabled || (context.getTokens() < summaryThreshold && context.size() < maxMessagePoolSize)) {
+            return;
+        }
+        int from = countExamples(context);
+        int to = context.size() - summaryKeepMessages;
+        if (to - from < 2 || !summarizing.add(userId)) {
+            return;
+        }
+        List<Message> older = context.snapshot().subList(from, to);
+        long start = System.nanoTime();
+        admitted(userId, false, () -> client.getCompletionAsync(buildSummaryRequest(older)))
+                .thenCompose(response -> {
+                    Usage tokens = response.getUsage();
+                    if (tokens != null) {
+                        usage.record(userId, null, summaryModel,
+                                tokens.getPromptTokens() == null ? 0 : tokens.getPromptTokens(),
+                                tokens.getCompletionTokens() == null ? 0 : tokens.getCompletionTokens());
                     }
-                }
-                // Добавьте новое сообщение в журнал сообщений, предыдущие сообщения будут удалены, когда контекст достигнет максимальной длины.
-                Message newUserMessage = new Message();
-                newUserMessage.setRole("user");
-                newUserMessage.setContent(update.message().text());
-                userContext.get(update.message().from().id()).add(newUserMessage);
-                // add to userMessages
-                messages.addAll(userContext.get(update.message().from().id()));
-            } else {
-                // Если это группа, сообщение обрабатывается без какого-либо контекста.
-                // Если есть примеры, добавляем их в список сообщений перед сообщением пользователя
-                if(!this.examples.isEmpty()) {
-                    messages.addAll(getExamples(this.examples));
-                }
-                Message userMessage = new Message();
-                userMessage.setRole("user");
-                userMessage.setContent(update.message().text());
-                messages.add(userMessage);
+                    Message summary = new Message().withRole("system").withContent(
+                            "Краткое содержание предыдущей части разговора: " + response.getChoices().get(0).getMessage().getContent());
+                    return enqueueTurn(userId, () -> {
+                        applySummary(userId, context, older, summary);
+                        return CompletableFuture.completedFuture(null);
+                    });
+                })
+                .whenComplete((ignored, error) -> {
+                    summarizing.remove(userId);
+                    metrics.record("summary", start);
+                    if (error != null) {
+                        metrics.error("summary_failed");
+                        log.warn("Не удалось сократить контекст пользователя " + userId + ": " + error.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * @param older сообщения, которые нужно пересказать
+     * @return запрос краткого содержания к более дешевой модели
+     */
+    private ChatRequest buildSummaryRequest(List<Message> older) {
+        StringBuilder transcript = new StringBuilder();
+        for (Message message : older) {
+            transcript.append(message.getRole()).append(": ").append(message.getContent()).append('\n');
+        }
+        ChatRequest request = new ChatRequest();
+        request.setModel(summaryModel);
+        request.setTemperature(0.0);
+        request.setMaxTokens(summaryMaxTokens);
+        request.setMessages(List.of(new Message().withRole("system").withContent(summaryPrompt),
+                new Message().withRole("user").withContent(transcript.toString())));
+        return request;
+    }
+
+    /**
+     * Заменяет пересказанные сообщения кратким содержанием. Выполняется в очереди ходов пользователя, поэтому
+     * контекст в это время не меняется. Если контекст сброшен или вытеснен, краткое содержание не нужно.
+     * @param userId идентификатор пользователя
+     * @param context контекст, для которого готовилось краткое содержание
+     * @param older пересказанные сообщения
+     * @param summary краткое содержание
+     */
+    private void applySummary(Long userId, MessageLog<Message> context, List<Message> older, Message summary) {
+        if (userContext.asMap().get(userId) != context) {
+            return;
+        }
+        // сообщения добавляются только в конец, а с начала могли уйти при обрезке, поэтому ищется последнее
+        int last = -1;
+        for (int i = context.size() - 1; i >= 0 && last < 0; i--) {
+            if (context.get(i) == older.get(older.size() - 1)) {
+                last = i;
             }
+        }
+        int from = countExamples(context);
+        if (last < from) {
+            return;
+        }
+        int before = context.getTokens();
+        context.replaceRange(from, last + 1, summary);
+        metrics.count("summaries");
+        log.debug("Контекст пользователя " + userId + " сокращен с " + before + " до " + context.getTokens() + " токенов");
+        // журнал хранит только сообщения разговора без примеров, переписываем его историю целиком
+        journal.reset(userId);
+        for (Message message : context.subList(from, context.size())) {
+            journal.append(userId, message);
+        }
+        userContext.asMap().replace(userId, context, context);
+    }
+
+    /**
+     * @param context контекст пользователя
+     * @return количество примеров из конфигурации в начале контекста
+     */
+    private int countExamples(MessageLog<Message> context) {
+        List<Message> examples = this.examples;
+        int count = 0;
+        while (count < context.size() && count < examples.size() && context.get(count) == examples.get(count)) {
+            count++;
+        }
+        return count;
+    }
 
-            // set messages to the request
-            chatRequest.setMessages(messages);
+    /**
+     * Создает новый журнал сообщений пользователя и заполняет его примерами из конфигурации
+     * и сохраненной историей из журнала разговоров.
+     * @param userId идентификатор пользователя
+     * @return новый контекст пользователя
+     */
+    private MessageLog<Message> newUserContext(Long userId) {
+        // История ограничена окном модели за вычетом системной подсказки и минимального запаса на ответ
+        int historyBudget = contextWindow - systemPrefix.getTokens() - minCompletionTokens - TokenCounter.TOKENS_PER_REPLY;
+        MessageLog<Message> context = new MessageLog<>(maxMessagePoolSize, historyBudget, tokenCounter::count);
+        // Если есть примеры, добавьте их в контекст
+        if(!this.examples.isEmpty()) {
+            context.addAll(this.examples);
+        }
+        // История загружается лениво, при первом сообщении пользователя после запуска или вытеснения
+        context.addAll(journal.load(userId));
+        return context;
+    }
 
-            // Отправить синхронный запрос в API OpenAI
-            response = client.getCompletion(chatRequest);
-            // Incremet token counter
-            ntokens = ntokens + response.getUsage().getTotalTokens();
+    /**
+     * Создает запрос для одного хода разговора. Для приватного чата сообщение пользователя добавляется в его контекст.
+     * @param update объект обновления, содержащий пользовательский ввод
+     * @param context журнал сообщений пользователя или null для группы
+     * @return запрос чата
+     */
+    ChatRequest buildRequest(Update update, MessageLog<Message> context) {
+        long start = System.nanoTime();
+        // Compose new request
+        ChatRequest chatRequest = new ChatRequest();
+        chatRequest.setModel(model);
+        chatRequest.setTemperature(temperature);
+
+        // Set up array of messages: общий префикс с системной подсказкой и сообщения разговора
+        PromptMessages messages;
+        int promptTokens;
+
+        // List of user messages
+        if(context != null) {
+            // Если это приватный чат, то мы отправляем ряд предыдущих сообщений для контекста
+            // Добавьте новое сообщение в журнал сообщений, предыдущие сообщения будут удалены, когда контекст достигнет максимальной длины.
+            Message newUserMessage = new Message();
+            newUserMessage.setRole("user");
+            newUserMessage.setContent(update.message().text());
+            context.add(newUserMessage);
+            journal.append(update.message().from().id(), newUserMessage);
+            // add to userMessages
+            PromptPrefix prefix = this.systemPrefix;
+            // снимок не копирует контекст и не меняется, пока к контексту добавляется ответ
+            messages = new PromptMessages(prefix, context.snapshot());
+            // для контекста сумма токенов уже известна
+            promptTokens = prefix.getTokens() + context.getTokens() + TokenCounter.TOKENS_PER_REPLY;
+        } else {
+            // Примеры уже входят в префикс группы перед сообщением пользователя
+            Message userMessage = new Message();
+            userMessage.setRole("user");
+            userMessage.setContent(update.message().text());
+            messages = new PromptMessages(this.groupPrefix, List.of(userMessage));
+            promptTokens = countTokens(messages);
+        }
 
-            // Если это приватный разговор, добавьте ответ помощника в контекст пользователя.
-            if(isPrivate(update)) {
-                Message assistantMessage = new Message();
-                assistantMessage.setRole("assistant");
-                assistantMessage.setContent(response.getChoices().get(0).getMessage().getContent());
-                userContext.get(update.message().from().id()).add(assistantMessage);
+        // set messages to the request
+        chatRequest.setMessages(messages);
+        // max_tokens - то, что осталось от окна модели после подсказки
+        chatRequest.setMaxTokens(completionBudget(promptTokens));
+        metrics.record("request_build", start);
+        return chatRequest;
+    }
+
+    /**
+     * Отправляет запрос в API OpenAI и учитывает израсходованные токены.
+     * @param chatRequest запрос чата
+     * @param onDelta получатель фрагментов ответа или null для обычного запроса
+     * @param update сообщение, на которое отвечает бот, или null; токены учитываются за его автором и чатом
+     * @return будущий ответ чата
+     */
+    private CompletableFuture<ChatResponse> complete(ChatRequest chatRequest, Consumer<String> onDelta, Update update) {
+        // Отправить асинхронный запрос в API OpenAI, в потоковом режиме фрагменты уходят получателю сразу.
+        // Запросы без сообщения (презентация) допускаются как группа с идентификатором 0
+        long caller = update == null ? 0 : update.message().chat().id();
+        CompletableFuture<ChatResponse> response = admitted(caller, update == null || !isPrivate(update), () -> onDelta == null
+                ? client.getCompletionAsync(chatRequest)
+                : client.getCompletionStreamAsync(chatRequest, onDelta));
+        return response.thenApply(chatResponse -> {
+            // Incremet token counter; у ответа, полученного вместе с таким же запросом, usage нет
+            Usage tokens = chatResponse.getUsage();
+            if (tokens != null) {
+                Long userId = update == null ? null : update.message().from().id();
+                Long chatId = update == null ? null : update.message().chat().id();
+                long promptTokens = tokens.getPromptTokens() == null ? 0 : tokens.getPromptTokens();
+                long completionTokens = tokens.getCompletionTokens() == null ? 0 : tokens.getCompletionTokens();
+                usage.record(userId, chatId, chatRequest.getModel(), promptTokens, completionTokens);
+                // у приватного чата нет отдельного лимита, токены списываются только с пользователя
+                quotas.charge(userId, update == null || isPrivate(update) ? null : chatId, promptTokens + completionTokens);
+            }
+            return chatResponse;
+        });
+    }
+
+    /**
+     * Выполняет вызов API OpenAI, когда его допустит {@link FairAdmission}, и освобождает место после ответа.
+     * @param chatId чат, от имени которого выполняется вызов
+     * @param group true для группы
+     * @param call вызов API OpenAI
+     * @return будущий ответ чата; завершается RejectedExecutionException, если очередь вызовов переполнена
+     */
+    private CompletableFuture<ChatResponse> admitted(long chatId, boolean group, Supplier<CompletableFuture<ChatResponse>> call) {
+        return admission.acquire(chatId, group).thenCompose(ignored -> {
+            CompletableFuture<ChatResponse> response;
+            try {
+                response = call.get();
+            } catch (RuntimeException e) {
+                admission.release();
+                throw e;
             }
+            response.whenComplete((chatResponse, error) -> admission.release());
+            return response;
+        });
+    }
 
-            // Return text to be sent to the user
-            return response.getChoices().get(0).getMessage().getContent();
+    /**
+     * Выполняет запрос без пользовательского контекста через кэш ответов. Ключ кэша - хэш модели,
+     * температуры и всех сообщений, поэтому повторный одинаковый вопрос не доходит до API OpenAI.
+     * @param chatRequest запрос чата
+     * @param onDelta получатель фрагментов ответа или null для обычного запроса
+     * @param update сообщение, на которое отвечает бот, или null
+     * @return будущий текст ответа
+     */
+    private CompletableFuture<String> completeStateless(ChatRequest chatRequest, Consumer<String> onDelta, Update update) {
+        if (completionCache == null) {
+            return complete(chatRequest, onDelta, update).thenApply(response -> response.getChoices().get(0).getMessage().getContent());
+        }
+        String key = RequestHasher.hash(chatRequest);
+        String cached = completionCache.getIfPresent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return complete(chatRequest, onDelta, update).thenApply(response -> {
+            String content = response.getChoices().get(0).getMessage().getContent();
+            completionCache.put(key, content);
+            return content;
+        });
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-           log.error("Извините, что-то пошло не так. " + "Ошибка: " + e);
-            return "Извините, что-то пошло не так. " +
-                    "(Идет процесс отладки этой ошибки)";
+    /**
+     * @return количество запросов к API OpenAI, объединенных с уже выполнявшимися одинаковыми запросами
+     */
+    public long getCoalescedCalls() {
+        return client.getCoalescedCalls();
+    }
+
+    /**
+     * @return количество выполняющихся и ожидающих очереди запросов к API OpenAI
+     */
+    public int getPendingCalls() {
+        return client.getPendingCalls();
+    }
+
+    /**
+     * @return счетчики кэша ответов на запросы без контекста или null, если кэш выключен
+     */
+    public CacheStats getCompletionCacheStats() {
+        return completionCache == null ? null : completionCache.stats();
+    }
+
+    /**
+     * Подсчитывает токены списка сообщений вместе с токенами начала ответа. Токены префикса уже посчитаны.
+     * @param messages сообщения запроса
+     * @return количество токенов подсказки
+     */
+    private int countTokens(PromptMessages messages) {
+        int tokens = messages.getPrefix().getTokens() + TokenCounter.TOKENS_PER_REPLY;
+        for (Message message : messages.getTail()) {
+            tokens += tokenCounter.count(message);
         }
+        return tokens;
+    }
+
+    /**
+     * Вычисляет max_tokens для запроса: остаток окна модели, но не больше openai.maxtokens.
+     * @param promptTokens количество токенов подсказки
+     * @return допустимое количество токенов ответа
+     */
+    private int completionBudget(int promptTokens) {
+        return Math.max(1, Math.min(maxtokens, contextWindow - promptTokens));
     }
 
     /**
@@ -196,7 +746,7 @@ public class GptService {
      * @param examples ArrayList строк для преобразования в сообщения
      *  @return ArrayList сообщений
      */
-    private ArrayList<Message> getExamples(ArrayList<String> examples) {
+    ArrayList<Message> getExamples(ArrayList<String> examples) {
         ArrayList<Message> results = new ArrayList<>();
         for(String example: examples) {
             try {
@@ -225,7 +775,7 @@ public class GptService {
      *  @param update объект обновления, содержащий информацию о пользователе
      *   @return true, если пользователь авторизован, иначе false
      */
-    private boolean checkPermission(Update update) {
+    boolean checkPermission(Update update) {
         // если белый список пуст, с ботом могут разговаривать все, в противном случае его необходимо проверить
         String userName = "none";
         String groupName = "none";
@@ -255,48 +805,54 @@ public class GptService {
     }
 
     /**
-     * Этот метод отправляет сообщение в API OpenAI для создания текстового
+     * Этот метод асинхронно отправляет сообщение в API OpenAI для создания текстового
      *  ответ. Сообщение основано не на пользовательском вводе, а на пользовательском тексте презентации.
      *  @param update объект обновления, содержащий информацию о пользователе
      *  @param text пользовательский текст презентации
-     *  @return the text, сгенерированный API OpenAI
+     *  @return будущий текст, сгенерированный API OpenAI; вместо исключения он содержит текст с извинением
      */
-    public String sendCustomMessage(Update update, String text) {
-        ChatResponse response = null;
+    public CompletableFuture<String> sendCustomMessageAsync(Update update, String text) {
+        CompletableFuture<String> reply;
         try {
-
-            // Compose new request
-            ObjectMapper mapper = new ObjectMapper();
-            ChatRequest chatRequest = new ChatRequest();
-            chatRequest.setModel(model);
-            chatRequest.setTemperature(temperature);
-            chatRequest.setMaxTokens(maxtokens);
-            // Set up array of messages
-            ArrayList<Message> messages = new ArrayList<>();
-            Message systemMessage = new Message();
-            // System prompt
-            systemMessage.setRole("system");
-            systemMessage.setContent(systemprompt);
-            messages.add(systemMessage);
-            // Custom message
-            Message userMessage = new Message();
-            userMessage.setRole("user");
-            userMessage.setContent(this.presentation);
-            messages.add(userMessage);
-            // set messages to the request
-            chatRequest.setMessages(messages);
-
-            // Send synchronous request to the OpenAI Api
-            response = client.getCompletion(chatRequest);
-            // Incremet token counter
-            ntokens = ntokens + response.getUsage().getTotalTokens();
-            // Return text to be sent to the user
-            return response.getChoices().get(0).getMessage().getContent();
-
+            // Send asynchronous request to the OpenAI Api (или берем ответ из кэша)
+            reply = completeStateless(presentationRequest(), null, null);
         } catch (Exception e) {
-            e.printStackTrace();
-            return "Извините, что-то пошло не так. ";
+            reply = CompletableFuture.failedFuture(e);
         }
+        // Return text to be sent to the user
+        return reply.exceptionally(error -> {
+            log.error("Не удалось получить презентацию: " + error.getMessage(), error);
+            return "Извините, что-то пошло не так. ";
+        });
+    }
+
+    /**
+     * Генерирует новый вариант презентации бота, минуя кэш ответов.
+     * @return текст презентации, сгенерированный API OpenAI
+     * @throws Exception, если запрос к API OpenAI не удался
+     */
+    public String generatePresentation() throws Exception {
+        return complete(presentationRequest(), null, null).get().getChoices().get(0).getMessage().getContent();
+    }
+
+    /**
+     * Создает запрос презентации: системная подсказка и текст bot.presentation.
+     * @return запрос чата
+     */
+    private ChatRequest presentationRequest() {
+        // Compose new request
+        ChatRequest chatRequest = new ChatRequest();
+        chatRequest.setModel(model);
+        chatRequest.setTemperature(temperature);
+        // Custom message после системной подсказки
+        Message userMessage = new Message();
+        userMessage.setRole("user");
+        userMessage.setContent(this.presentation);
+        PromptMessages messages = new PromptMessages(this.systemPrefix, List.of(userMessage));
+        // set messages to the request
+        chatRequest.setMessages(messages);
+        chatRequest.setMaxTokens(completionBudget(countTokens(messages)));
+        return chatRequest;
     }
 
     /**
@@ -315,8 +871,10 @@ public class GptService {
     public String resetUserContext(Update update) {
         // If this is a private chat, reset context for current user
         if(isPrivate(update)){
-           if (this.userContext.containsKey(update.message().from().id())) {
-               this.userContext.remove(update.message().from().id());
+           Long userId = update.message().from().id();
+           boolean inMemory = this.userContext.asMap().remove(userId) != null;
+           boolean inJournal = journal.reset(userId);
+           if (inMemory || inJournal) {
                return "Пользовательский контекст был сброшен " + update.message().from().firstName();
            } else {
                return "Я не нашел контекст для пользователя " + update.message().from().firstName();
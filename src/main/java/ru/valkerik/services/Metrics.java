@@ -0,0 +1,229 @@
+/**
+ * Этот класс собирает метрики бота: гистограммы задержек по этапам обработки (HdrHistogram, можно читать
+ * p50/p99/p999), счетчики событий и ошибок по причинам и текущие значения вроде числа запросов в работе.
+ * Перцентили и максимум считаются по скользящему окну metrics.window.seconds, поэтому показывают текущее
+ * состояние, а не все время с запуска; количество и сумма задержек, как и положено в Prometheus, накапливаются.
+ * Метрики отдаются в текстовом формате Prometheus встроенным HTTP-сервером, никаких внешних сервисов не нужно.
+ */
+
+package ru.valkerik.services;
+
+import com.sun.net.httpserver.HttpServer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+@Slf4j
+@Service
+public class Metrics {
+
+    // Перцентили, которые показываются для каждого этапа
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    @Value("${metrics.port:9091}")
+    private int port;
+    @Value("${metrics.host:127.0.0.1}")
+    private String host;
+    @Value("${metrics.window.seconds:60}")
+    private long windowSeconds;
+
+    // Задержки этапов в микросекундах; записываются без блокировок
+    private final ConcurrentHashMap<String, Stage> stages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+    private HttpServer server;
+
+    /**
+     * Запускает сервер метрик на metrics.host:metrics.port, если порт не равен 0.
+     */
+    @PostConstruct
+    private void init() {
+        if (port == 0) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (IOException e) {
+            log.error("Не удалось запустить сервер метрик на " + host + ":" + port + ": " + e.getMessage());
+            return;
+        }
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        log.info("Метрики доступны на http://{}:{}/metrics", host, port);
+    }
+
+    @PreDestroy
+    private void dispose() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Записывает длительность этапа, начавшегося в момент start.
+     * @param stage имя этапа
+     * @param startNanos System.nanoTime() в начале этапа
+     */
+    public void record(String stage, long startNanos) {
+        recordNanos(stage, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Записывает длительность этапа.
+     * @param stage имя этапа
+     * @param nanos длительность в наносекундах
+     */
+    public void recordNanos(String stage, long nanos) {
+        stages.computeIfAbsent(stage, name -> new Stage(windowSeconds * 1_000_000_000L))
+                .record(Math.max(0, nanos / 1000));
+    }
+
+    /**
+     * Увеличивает счетчик событий, например количество принятых обновлений.
+     * @param name имя счетчика
+     */
+    public void count(String name) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Увеличивает счетчик ошибок с заданной причиной.
+     * @param cause причина ошибки, например openai_429
+     */
+    public void error(String cause) {
+        errors.computeIfAbsent(cause, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Регистрирует текущее значение, которое читается при каждом запросе метрик.
+     * @param name имя значения
+     * @param value поставщик значения
+     */
+    public void gauge(String name, Supplier<? extends Number> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return все метрики в текстовом формате Prometheus
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder max = new StringBuilder("# TYPE bot_stage_latency_max_seconds gauge\n");
+        out.append("# TYPE bot_stage_latency_seconds summary\n");
+        long now = System.nanoTime();
+        for (Map.Entry<String, Stage> entry : new TreeMap<>(stages).entrySet()) {
+            Stage stage = entry.getValue();
+            Histogram histogram = stage.window(now);
+            String label = "stage=\"" + entry.getKey() + "\"";
+            for (double quantile : QUANTILES) {
+                line(out, "bot_stage_latency_seconds{" + label + ",quantile=\"" + quantile + "\"}",
+                        histogram.getValueAtPercentile(quantile * 100) / 1e6);
+            }
+            line(out, "bot_stage_latency_seconds_count{" + label + "}", stage.count.sum());
+            line(out, "bot_stage_latency_seconds_sum{" + label + "}", stage.sumMicros.sum() / 1e6);
+            line(max, "bot_stage_latency_max_seconds{" + label + "}", histogram.getMaxValue() / 1e6);
+        }
+        out.append(max);
+        out.append("# TYPE bot_events_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            line(out, "bot_events_total{event=\"" + entry.getKey() + "\"}", entry.getValue().sum());
+        }
+        out.append("# TYPE bot_errors_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(errors).entrySet()) {
+            line(out, "bot_errors_total{cause=\"" + entry.getKey() + "\"}", entry.getValue().sum());
+        }
+        for (Map.Entry<String, Supplier<? extends Number>> entry : new TreeMap<>(gauges).entrySet()) {
+            out.append("# TYPE bot_").append(entry.getKey()).append(" gauge\n");
+            line(out, "bot_" + entry.getKey(), entry.getValue().get().doubleValue());
+        }
+        return out.toString();
+    }
+
+    /**
+     * Задержки одного этапа. Потоки пишут в Recorder без блокировок, а при чтении метрик накопленный интервал
+     * переносится в кольцо из WINDOW_SLICES частей окна; части старше окна очищаются. Значения, записанные
+     * между двумя чтениями, попадают в часть, текущую на момент чтения, поэтому окно фактически не короче
+     * интервала между запросами метрик.
+     */
+    private static final class Stage {
+        private static final int WINDOW_SLICES = 6;
+
+        private final Recorder recorder = new Recorder(3);
+        private final Histogram[] slices = new Histogram[WINDOW_SLICES];
+        private final long sliceNanos;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+        private Histogram interval;
+        private long sliceStart = System.nanoTime();
+        private int current;
+
+        Stage(long windowNanos) {
+            this.sliceNanos = Math.max(1, windowNanos / WINDOW_SLICES);
+            for (int i = 0; i < WINDOW_SLICES; i++) {
+                slices[i] = new Histogram(3);
+            }
+        }
+
+        void record(long micros) {
+            recorder.recordValue(micros);
+            count.increment();
+            sumMicros.add(micros);
+        }
+
+        /**
+         * @param now текущее System.nanoTime()
+         * @return задержки за последнее окно
+         */
+        synchronized Histogram window(long now) {
+            long elapsed = (now - sliceStart) / sliceNanos;
+            if (elapsed > 0) {
+                for (long i = 0; i < Math.min(elapsed, WINDOW_SLICES); i++) {
+                    current = (current + 1) % WINDOW_SLICES;
+                    slices[current].reset();
+                }
+                sliceStart += elapsed * sliceNanos;
+            }
+            // прочитанный интервал возвращается Recorder, чтобы не создавать гистограмму при каждом чтении
+            interval = recorder.getIntervalHistogram(interval);
+            slices[current].add(interval);
+            Histogram window = new Histogram(3);
+            for (Histogram slice : slices) {
+                window.add(slice);
+            }
+            return window;
+        }
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder out, String name, double value) {
+        out.append(name).append(' ').append(String.format(Locale.ROOT, "%.6g", value)).append('\n');
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Этот класс хранит заранее сгенерированные варианты презентации бота для команды /start. Варианты создаются в фоне
+ * при запуске и периодически обновляются, поэтому пользователь получает ответ сразу, без обращения к API OpenAI.
+ * Пока ни одного варианта нет, презентация запрашивается как обычно.
+ */
+
+package ru.valkerik.services;
+
+import com.pengrad.telegrambot.model.Update;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@Slf4j
+@Service
+public class PresentationService {
+
+    @Autowired
+    private GptService gptService;
+
+    @Value("${bot.presentation}")
+    private String presentationText;
+    @Value("${bot.presentation.pool.size:3}")
+    private int poolSize;
+    @Value("${bot.presentation.refresh.minutes:360}")
+    private long refreshMinutes;
+
+    // Неизменяемый список готовых вариантов, заменяется целиком при каждом обновлении
+    private volatile List<String> variants = List.of();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Запускает фоновое заполнение и периодическое обновление вариантов презентации.
+     */
+    @PostConstruct
+    private void init() {
+        if (poolSize <= 0) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presentation-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void dispose() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Возвращает случайный готовый вариант презентации или, если их еще нет, запрашивает презентацию, не дожидаясь
+     * ответа в потоке вызывающего.
+     * @param update Сообщение, полученное от пользователя.
+     * @return будущий текст презентации
+     */
+    public CompletableFuture<String> getPresentationAsync(Update update) {
+        List<String> current = this.variants;
+        if (current.isEmpty()) {
+            return gptService.sendCustomMessageAsync(update, presentationText);
+        }
+        return CompletableFuture.completedFuture(current.get(ThreadLocalRandom.current().nextInt(current.size())));
+    }
+
+    /**
+     * Генерирует варианты по одному и сразу публикует каждый, заменяя старые по очереди.
+     * Неудачный вариант пропускается, прежний при этом остается в пуле.
+     */
+    private void refresh() {
+        for (int i = 0; i < poolSize; i++) {
+            try {
+                String variant = gptService.generatePresentation();
+                List<String> next = new ArrayList<>(this.variants);
+                if (i < next.size()) {
+                    next.set(i, variant);
+                } else {
+                    next.add(variant);
+                }
+                this.variants = List.copyOf(next);
+            } catch (Exception e) {
+                log.error("Не удалось сгенерировать вариант презентации: " + e.getMessage());
+            }
+        }
+        log.info("Варианты презентации обновлены: {}", variants.size());
+    }
+}
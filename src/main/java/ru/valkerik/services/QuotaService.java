@@ -0,0 +1,253 @@
+/**
+ * Этот класс ограничивает расход бота по пользователям и чатам: количество запросов в минуту и токенов в сутки.
+ * Проверка выполняется до того, как запрос к OpenAI начнет строиться, и занимает O(1): у каждого пользователя и чата
+ * по два ограничителя TokenBucket, которые обновляются одной операцией compareAndSet без блокировок и без
+ * выделения памяти. Ключами ограничителей служат объекты Long из обновления, поэтому разрешенная проверка
+ * уже известного пользователя ничего не выделяет; память выделяется только под ограничители нового пользователя
+ * или чата и под описание отказа. Токены становятся известны только после ответа, поэтому они списываются в долг: пользователь,
+ * превысивший суточный лимит, получает отказ, пока долг не погасится. Лимиты задаются тарифами, у каждого тарифа
+ * свой список пользователей; пользователи вне списков получают тариф по умолчанию.
+ */
+
+package ru.valkerik.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import ru.valkerik.utils.TokenBucket;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+@Slf4j
+@Service
+public class QuotaService {
+
+    @Value("${bot.quota.enabled:true}")
+    private boolean enabled;
+    @Value("${bot.quota.requests.per.minute:20}")
+    private int requestsPerMinute;
+    @Value("${bot.quota.tokens.per.day:200000}")
+    private long tokensPerDay;
+    @Value("${bot.quota.chat.requests.per.minute:30}")
+    private int chatRequestsPerMinute;
+    @Value("${bot.quota.chat.tokens.per.day:500000}")
+    private long chatTokensPerDay;
+    @Autowired
+    private Environment env;
+    @Autowired
+    private Metrics metrics;
+
+    // Тариф по умолчанию и тарифы, назначенные пользователям явно
+    private Tier defaultTier;
+    private Tier chatTier;
+    private final Map<Long, Tier> userTiers = new HashMap<>();
+    // Ограничители удаляются, когда они полностью восстановились
+    private final ConcurrentHashMap<Long, Quota> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Quota> chats = new ConcurrentHashMap<>();
+    // Ссылки на методы созданы один раз, чтобы computeIfAbsent не создавал лямбду при каждом вызове
+    private final Function<Long, Quota> newUserQuota = userId -> new Quota(userTiers.getOrDefault(userId, defaultTier));
+    private final Function<Long, Quota> newChatQuota = chatId -> new Quota(chatTier);
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    private void init() {
+        this.defaultTier = new Tier(requestsPerMinute, tokensPerDay);
+        this.chatTier = new Tier(chatRequestsPerMinute, chatTokensPerDay);
+        loadTiers();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "quota-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, 10, 10, TimeUnit.MINUTES);
+        metrics.gauge("quota_users", users::size);
+    }
+
+    @PreDestroy
+    private void dispose() {
+        sweeper.shutdown();
+    }
+
+    /**
+     * Читает тарифы bot.quota.tier.1.users, bot.quota.tier.1.requests.per.minute, bot.quota.tier.1.tokens.per.day,
+     * bot.quota.tier.2.users... Список пользователей - идентификаторы Telegram через запятую, лимит, который
+     * не задан, берется из тарифа по умолчанию, 0 снимает лимит.
+     */
+    private void loadTiers() {
+        int i = 1;
+        while (env.containsProperty("bot.quota.tier." + i + ".users")) {
+            String prefix = "bot.quota.tier." + i;
+            Tier tier = new Tier(env.getProperty(prefix + ".requests.per.minute", Integer.class, requestsPerMinute),
+                    env.getProperty(prefix + ".tokens.per.day", Long.class, tokensPerDay));
+            for (String user : env.getProperty(prefix + ".users", "").split(",")) {
+                if (!user.isBlank()) {
+                    try {
+                        userTiers.put(Long.valueOf(user.trim()), tier);
+                    } catch (NumberFormatException e) {
+                        log.error("Неверный идентификатор пользователя в " + prefix + ".users: " + user);
+                    }
+                }
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Проверяет, что пользователь и чат не исчерпали лимиты, и расходует по одному запросу из лимитов запросов.
+     * Идентификаторы принимаются объектами Long из обновления: так поиск ограничителя не упаковывает их заново.
+     * @param userId автор сообщения
+     * @param chatId групповой чат или null для приватного, у которого нет отдельного лимита
+     * @return null, если запрос разрешен, иначе исчерпанный лимит и время до его восстановления
+     */
+    public Denial tryAcquire(Long userId, Long chatId) {
+        if (!enabled) {
+            return null;
+        }
+        Quota user = users.computeIfAbsent(userId, newUserQuota);
+        Quota chat = chatId == null ? null : chats.computeIfAbsent(chatId, newChatQuota);
+        // время берется после создания ограничителей: новый ограничитель не должен оказаться в будущем
+        long now = System.nanoTime();
+        // сначала токены, которые только проверяются, затем запросы, которые расходуются
+        long wait = user.tokensWait(now);
+        if (wait > 0) {
+            return new Denial(Limit.USER_TOKENS, wait);
+        }
+        wait = chat == null ? 0 : chat.tokensWait(now);
+        if (wait > 0) {
+            return new Denial(Limit.CHAT_TOKENS, wait);
+        }
+        wait = user.tryRequest(now);
+        if (wait > 0) {
+            return new Denial(Limit.USER_REQUESTS, wait);
+        }
+        if (chat == null) {
+            return null;
+        }
+        // запрос пользователя уже учтен, но чат исчерпал свой лимит; такой отказ пользователю не засчитывается
+        wait = chat.tryRequest(now);
+        if (wait > 0) {
+            user.refundRequest();
+            return new Denial(Limit.CHAT_REQUESTS, wait);
+        }
+        return null;
+    }
+
+    /**
+     * Списывает токены, израсходованные на ответ. Превышение лимита уходит в долг.
+     * @param userId автор сообщения или null
+     * @param chatId групповой чат или null
+     * @param tokens токены запроса и ответа
+     */
+    public void charge(Long userId, Long chatId, long tokens) {
+        if (!enabled || tokens <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (userId != null) {
+            users.computeIfAbsent(userId, newUserQuota).chargeTokens(now, tokens);
+        }
+        if (chatId != null) {
+            chats.computeIfAbsent(chatId, newChatQuota).chargeTokens(now, tokens);
+        }
+    }
+
+    /**
+     * Удаляет ограничители, которые полностью восстановились: новый ограничитель будет в том же состоянии.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        users.values().removeIf(quota -> quota.isIdle(now));
+        chats.values().removeIf(quota -> quota.isIdle(now));
+    }
+
+    /**
+     * Лимит, из-за которого запрос отклонен.
+     */
+    public enum Limit {
+        USER_REQUESTS, USER_TOKENS, CHAT_REQUESTS, CHAT_TOKENS
+    }
+
+    /**
+     * Отказ в запросе: исчерпанный лимит и через сколько наносекунд он восстановится.
+     */
+    public static final class Denial {
+        private final Limit limit;
+        private final long waitNanos;
+
+        Denial(Limit limit, long waitNanos) {
+            this.limit = limit;
+            this.waitNanos = waitNanos;
+        }
+
+        public Limit getLimit() {
+            return limit;
+        }
+
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+    }
+
+    /**
+     * Лимиты тарифа; 0 снимает лимит.
+     */
+    private static final class Tier {
+        private final int requestsPerMinute;
+        private final long tokensPerDay;
+
+        Tier(int requestsPerMinute, long tokensPerDay) {
+            this.requestsPerMinute = requestsPerMinute;
+            this.tokensPerDay = tokensPerDay;
+        }
+    }
+
+    /**
+     * Ограничители одного пользователя или чата. Лимит запросов можно израсходовать сразу весь, а суточный лимит
+     * токенов восстанавливается постепенно, равномерно в течение суток.
+     */
+    private static final class Quota {
+        private final TokenBucket requests;
+        private final TokenBucket tokens;
+
+        Quota(Tier tier) {
+            this.requests = tier.requestsPerMinute > 0
+                    ? new TokenBucket(tier.requestsPerMinute, 1, TimeUnit.MINUTES, tier.requestsPerMinute) : null;
+            this.tokens = tier.tokensPerDay > 0
+                    ? new TokenBucket(tier.tokensPerDay, 1, TimeUnit.DAYS, (int) Math.min(Integer.MAX_VALUE, tier.tokensPerDay)) : null;
+        }
+
+        long tokensWait(long now) {
+            return tokens == null ? 0 : tokens.waitNanos(now);
+        }
+
+        long tryRequest(long now) {
+            return requests == null ? 0 : requests.tryAcquire(now);
+        }
+
+        void refundRequest() {
+            if (requests != null) {
+                requests.refund(1);
+            }
+        }
+
+        void chargeTokens(long now, long count) {
+            if (tokens != null) {
+                tokens.consume(now, count);
+            }
+        }
+
+        boolean isIdle(long now) {
+            return (requests == null || requests.isIdle(now)) && (tokens == null || tokens.isIdle(now));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Этот класс представляет ответ, который показывается пользователю по мере генерации. Сначала боту нужно отправить
+ * сообщение-заглушку, затем оно редактируется по мере поступления фрагментов, но не чаще заданного интервала,
+ * чтобы не превышать ограничения Telegram на редактирование сообщений. Редактирования идут через очередь
+ * исходящих запросов чата; пока предыдущее редактирование не выполнено, новое не ставится в очередь.
+ */
+
+package ru.valkerik.services;
+
+import com.pengrad.telegrambot.model.request.ParseMode;
+import com.pengrad.telegrambot.request.EditMessageText;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+@Slf4j
+class StreamingReply implements Consumer<String> {
+
+    // Максимальная длина текста одного сообщения Telegram
+    static final int MAX_MESSAGE_LENGTH = 4096;
+
+    private final TelegramSender sender;
+    private final Long chatId;
+    private final boolean group;
+    private final Integer messageId;
+    private final long editIntervalNanos;
+    private final StringBuilder text = new StringBuilder();
+    private volatile String shownText = "";
+    private long lastEditNanos = System.nanoTime();
+    // промежуточное редактирование стоит в очереди или выполняется
+    private final AtomicBoolean editing = new AtomicBoolean();
+
+    /**
+     * @param sender очередь исходящих запросов к Telegram
+     * @param chatId чат, в котором находится сообщение-заглушка
+     * @param group true, если чат - группа
+     * @param messageId идентификатор сообщения-заглушки
+     * @param editIntervalMillis минимальный интервал между редактированиями
+     */
+    StreamingReply(TelegramSender sender, Long chatId, boolean group, Integer messageId, long editIntervalMillis) {
+        this.sender = sender;
+        this.chatId = chatId;
+        this.group = group;
+        this.messageId = messageId;
+        this.editIntervalNanos = editIntervalMillis * 1_000_000L;
+    }
+
+    /**
+     * Добавляет фрагмент ответа и обновляет сообщение, если с прошлого редактирования прошло достаточно времени.
+     * @param delta очередной фрагмент текста
+     */
+    @Override
+    public void accept(String delta) {
+        text.append(delta);
+        long now = System.nanoTime();
+        if (now - lastEditNanos >= editIntervalNanos && editing.compareAndSet(false, true)) {
+            lastEditNanos = now;
+            // Промежуточный текст отправляется без разметки: незакрытая разметка Markdown привела бы к ошибке
+            edit(head(text.toString()), null).whenComplete((ok, error) -> editing.set(false));
+        }
+    }
+
+    /**
+     * Записывает в сообщение окончательный текст ответа с разметкой Markdown. Если разметку не удалось разобрать,
+     * текст отправляется без нее.
+     * @param response полный текст ответа
+     * @return будущая часть ответа, не поместившаяся в одно сообщение, или пустая строка
+     */
+    CompletableFuture<String> finish(String response) {
+        String head = head(response);
+        return edit(head, ParseMode.Markdown)
+                .thenCompose(ok -> ok ? CompletableFuture.completedFuture(true) : edit(head, null))
+                .thenApply(ok -> response.substring(head.length()));
+    }
+
+    /**
+     * Возвращает часть текста, которая помещается в одно сообщение.
+     * @param value текст ответа
+     * @return начало текста не длиннее {@link #MAX_MESSAGE_LENGTH}
+     */
+    private static String head(String value) {
+        return value.length() > MAX_MESSAGE_LENGTH ? value.substring(0, MAX_MESSAGE_LENGTH) : value;
+    }
+
+    /**
+     * Редактирует сообщение-заглушку, пропуская запрос, если текст не изменился.
+     * @param value новый текст сообщения
+     * @param parseMode режим разметки или null
+     * @return будущий результат: true, если сообщение содержит переданный текст
+     */
+    private CompletableFuture<Boolean> edit(String value, ParseMode parseMode) {
+        if (value.isBlank() || (value.equals(shownText) && parseMode == null)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        EditMessageText request = new EditMessageText(chatId, messageId, value).disableWebPagePreview(true);
+        if (parseMode != null) {
+            request.parseMode(parseMode);
+        }
+        return sender.send(chatId, group, request).handle((response, error) -> {
+            if (error != null || !response.isOk()) {
+                log.warn("Не удалось обновить сообщение " + messageId + ": "
+                        + (error != null ? error.getMessage() : response.description()));
+                return false;
+            }
+            shownText = value;
+            return true;
+        });
+    }
+}
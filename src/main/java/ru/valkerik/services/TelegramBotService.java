@@ -5,14 +5,13 @@
 
 package ru.valkerik.services;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.pengrad.telegrambot.TelegramBot;
-import com.pengrad.telegrambot.UpdatesListener;
 import com.pengrad.telegrambot.model.Chat;
 import com.pengrad.telegrambot.model.Update;
 import com.pengrad.telegrambot.model.request.ParseMode;
 import com.pengrad.telegrambot.model.request.ReplyKeyboardRemove;
 import com.pengrad.telegrambot.request.SendMessage;
-import com.pengrad.telegrambot.response.SendResponse;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
@@ -21,6 +20,14 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 @Service
@@ -28,16 +35,53 @@ public class TelegramBotService {
 
 
     private static final String EMOJI_UFF = "\uD83D\uDE13" ;
+    private static final String STREAM_PLACEHOLDER = "\u2026";
     @Autowired
     GptService gptService;
+    @Autowired
+    UpdatesIngestion updatesIngestion;
+    @Autowired
+    PresentationService presentationService;
+    @Autowired
+    TelegramSender sender;
+    @Autowired
+    Metrics metrics;
+    @Autowired
+    TokenUsage tokenUsage;
 
     @Value("${bot.token}")
     private String BOT_TOKEN;
     @Value("${bot.name}")
     private String botName;
-    @Value("${bot.presentation}")
-    private String presentationText;
+    @Value("${bot.api.url:}")
+    private String apiUrl;
+    @Value("${bot.worker.mode:fair}")
+    private String workerMode;
+    @Value("${bot.worker.threads:8}")
+    private int workerThreads;
+    @Value("${bot.worker.queue.size:1000}")
+    private int workerQueueSize;
+    @Value("${bot.worker.weight.private:4}")
+    private double privateWeight;
+    @Value("${bot.worker.weight.group:1}")
+    private double groupWeight;
+    @Value("${openai.stream:false}")
+    private boolean streaming;
+    @Value("${bot.stream.edit.interval.private:1000}")
+    private long privateEditInterval;
+    @Value("${bot.stream.edit.interval.group:3000}")
+    private long groupEditInterval;
+    @Value("${bot.shutdown.timeout.seconds:30}")
+    private long shutdownTimeout;
     private TelegramBot bot;
+    // Исполнитель обработки обновлений, режим задается свойством bot.worker.mode
+    private UpdateExecutor workers;
+    // Обновления, которые ждут исполнителя: приватные чаты, группы и команды
+    private final AtomicInteger queuedPrivate = new AtomicInteger();
+    private final AtomicInteger queuedGroup = new AtomicInteger();
+    private final AtomicInteger queuedCommands = new AtomicInteger();
+    // Ответы, которые еще не отправлены: при остановке их дожидаются, прежде чем сохранить смещение обновлений
+    private final Set<CompletableFuture<Void>> replies = ConcurrentHashMap.newKeySet();
 
     /**
      * Инициализирует бота Telegram и настраивает прослушиватель обновлений для получения сообщений и их обработки.
@@ -45,64 +89,187 @@ public class TelegramBotService {
     @PostConstruct
     private void init() {
 
-        this.bot = new TelegramBot(BOT_TOKEN);
-        bot.setUpdatesListener(new UpdatesListener() {
-            @Override
-            public int process(List<Update> updates) {
-                try {
-                    Thread.sleep(6000);
-                } catch (InterruptedException e) {
-                   log.error("TelegramBotService. init() Error : " + e.getMessage());
-                }
-                // process updates
-                for (Update update : updates) {
-                    if (update.message() != null && update.message().text() != null) {
-                        if (update.message().text().startsWith("/")) {
-                            processCommand(update);
-                        } else {
-                            // если в группе, обрабатываются только сообщения, напрямую адресованные боту
-                            if(isPrivate(update)){
-                                processText(update);
-                            } else if(update.message().text().toLowerCase().contains("@"+botName.toLowerCase())) {
-                                processText(update);
-                            }
-                        }
-                    }
-                }
-                return UpdatesListener.CONFIRMED_UPDATES_ALL;
+        this.workers = UpdateExecutor.create(workerMode, workerThreads, workerQueueSize, privateWeight, groupWeight);
+        metrics.gauge("update_queue_private", queuedPrivate::get);
+        metrics.gauge("update_queue_group", queuedGroup::get);
+        metrics.gauge("update_queue_commands", queuedCommands::get);
+
+        // другой адрес Bot API нужен для собственного сервера Bot API или заглушки нагрузочного теста
+        this.bot = apiUrl.isEmpty() ? new TelegramBot(BOT_TOKEN) : new TelegramBot.Builder(BOT_TOKEN).apiUrl(apiUrl).build();
+        sender.start(bot);
+        // обновления принимаются без задержки и сразу передаются исполнителю своего чата
+        updatesIngestion.start(bot, (update, done) -> {
+            if (update.message() != null && update.message().text() != null) {
+                metrics.count("updates");
+                long received = System.nanoTime();
+                boolean group = !isPrivate(update);
+                boolean command = update.message().text().startsWith("/");
+                // команды идут быстрой очередью и не ждут сообщений, которые ждут OpenAI
+                AtomicInteger depth = command ? queuedCommands : group ? queuedGroup : queuedPrivate;
+                String stage = command ? "command_queue_wait" : group ? "group_queue_wait" : "private_queue_wait";
+                depth.incrementAndGet();
+                workers.execute(update.message().chat().id(), group, command, () -> {
+                    depth.decrementAndGet();
+                    metrics.record(stage, received);
+                    // обновление считается обработанным, только когда ответ на него отправлен
+                    CompletableFuture<Void> reply = processUpdate(update);
+                    replies.add(reply);
+                    reply.whenComplete((ignored, error) -> {
+                        replies.remove(reply);
+                        done.run();
+                    });
+                });
+            } else {
+                done.run();
             }
         });
 
     }
 
+    /**
+     * Обрабатывает одно обновление: выполняет команду либо генерирует ответ.
+     *  @param update Сообщение, полученное от пользователя.
+     *  @return будущее завершение обработки: ответ отправлен или отправить его не удалось; исключением не завершается
+     */
+    private CompletableFuture<Void> processUpdate(Update update) {
+        CompletableFuture<Void> reply;
+        try {
+            if (update.message().text().startsWith("/")) {
+                reply = processCommand(update);
+            } else if (isPrivate(update) || update.message().text().toLowerCase().contains("@" + botName.toLowerCase())) {
+                // если в группе, обрабатываются только сообщения, напрямую адресованные боту
+                reply = processText(update);
+            } else {
+                reply = CompletableFuture.completedFuture(null);
+            }
+        } catch (Exception e) {
+            reply = CompletableFuture.failedFuture(e);
+        }
+        return reply.exceptionally(error -> {
+            metrics.error("update_processing");
+            log.error("TelegramBotService. processUpdate() Error : " + error.getMessage(), error);
+            return null;
+        });
+    }
+
     /**
      * Закрывает Telegram Bot, когда приложение закрывается.
      */
     @PreDestroy
     private void dispose(){
         log.info("shutting down bot");
+        // сначала прекращаем прием, затем дожидаемся уже принятых обновлений, чтобы они не потерялись
+        updatesIngestion.stop();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(shutdownTimeout);
+            workers.shutdown(shutdownTimeout, TimeUnit.SECONDS);
+            // исполнители только запускают ответы, поэтому дожидаемся и самих ответов; неотправленные
+            // остаются неподтвержденными, и Telegram пришлет их обновления снова после перезапуска
+            CompletableFuture.allOf(replies.toArray(new CompletableFuture[0]))
+                    .get(Math.max(1, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Не дождались отправки ответов: {}", replies.size());
+        }
+        updatesIngestion.storeProcessedOffset();
         bot.shutdown();
     }
 
     /**
      * Обрабатывает сообщение, полученное от пользователя Telegram, генерируя ответ с использованием технологии GPT и
-     * отправка обратно.
+     * отправка обратно. Ответ отправляется, когда он будет готов: исполнитель чата не ждет API OpenAI
+     * и сразу переходит к следующему обновлению.
      * @param update Сообщение, полученное от пользователя.
+     * @return будущее завершение отправки ответа
      */
-    private void processText(Update update) {
+    private CompletableFuture<Void> processText(Update update) {
 
         log.info(update.message().from().firstName()+" said ... " + update.message().text());
-        String response = this.gptService.SendMessage(update);
-        log.info(this.botName + " said ... " + response);
-        sendReply(update, response);
+        // доступ и лимиты проверяются до заглушки, чтобы отказ пришел одним сообщением
+        String denial = gptService.admit(update);
+        if (denial != null) {
+            return sendReply(update, denial);
+        }
+        if (streaming) {
+            return processTextStreaming(update);
+        } else {
+            return processTextPlain(update);
+        }
     }
 
     /**
-     * Отправляет ответное сообщение обратно пользователю.
+     * Генерирует ответ целиком и отправляет его одним сообщением.
+     * @param update Сообщение, полученное от пользователя, уже допущенное GptService.
+     * @return будущее завершение отправки ответа
+     */
+    private CompletableFuture<Void> processTextPlain(Update update) {
+        return this.gptService.replyAsync(update, null).thenCompose(response -> {
+            log.info(this.botName + " said ... " + response);
+            return sendReply(update, response);
+        });
+    }
+
+    /**
+     * Генерирует ответ в потоковом режиме: сначала отправляет сообщение-заглушку, затем редактирует его
+     * по мере поступления текста. Если заглушку отправить не удалось, ответ отправляется обычным способом.
+     * @param update Сообщение, полученное от пользователя, уже допущенное GptService.
+     * @return будущее завершение отправки ответа
+     */
+    private CompletableFuture<Void> processTextStreaming(Update update) {
+        long chatId = update.message().chat().id();
+        return sender.send(chatId, !isPrivate(update), replyRequest(update, STREAM_PLACEHOLDER)).handle((placeholder, error) -> {
+            if (error != null || !placeholder.isOk()) {
+                log.error("Не удалось отправить заглушку ответа: "
+                        + (error != null ? error.getMessage() : placeholder.description()));
+                return processTextPlain(update);
+            }
+            StreamingReply reply = new StreamingReply(sender, chatId, !isPrivate(update), placeholder.message().messageId(),
+                    isPrivate(update) ? privateEditInterval : groupEditInterval);
+            return this.gptService.replyAsync(update, reply)
+                    .thenCompose(response -> {
+                        log.info(this.botName + " said ... " + response);
+                        return reply.finish(response);
+                    })
+                    .thenCompose(rest -> {
+                        // то, что не поместилось в одно сообщение, отправляем следующими сообщениями;
+                        // очередь чата отправляет их по порядку, поэтому последнее завершается последним
+                        CompletableFuture<Void> sent = CompletableFuture.completedFuture(null);
+                        while (!rest.isEmpty()) {
+                            int end = Math.min(rest.length(), StreamingReply.MAX_MESSAGE_LENGTH);
+                            sent = sendReply(update, rest.substring(0, end));
+                            rest = rest.substring(end);
+                        }
+                        return sent;
+                    });
+        }).thenCompose(reply -> reply);
+    }
+
+    /**
+     * Отправляет ответное сообщение обратно пользователю через очередь исходящих сообщений чата.
      *  @param update Сообщение, полученное от пользователя.
      *  @param message Сообщение для отправки обратно пользователю.
+     *  @return будущее завершение отправки; неудача только записывается в журнал
      */
-    private void sendReply(Update update, String message) {
+    private CompletableFuture<Void> sendReply(Update update, String message) {
+        return sender.send(update.message().chat().id(), !isPrivate(update), replyRequest(update, message))
+                .handle((sendResponse, error) -> {
+                    if (error != null) {
+                        log.error("Не удалось отправить ответ: " + error.getMessage());
+                    } else if (!sendResponse.isOk()) {
+                        log.error(sendResponse.description());
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Создает запрос на отправку ответного сообщения пользователю.
+     *  @param update Сообщение, полученное от пользователя.
+     *  @param message Текст ответа.
+     *  @return запрос SendMessage.
+     */
+    private SendMessage replyRequest(Update update, String message) {
         SendMessage request = new SendMessage(update.message().chat().id(), message)
                 .parseMode(ParseMode.Markdown)
                 .disableWebPagePreview(true)
@@ -113,10 +280,7 @@ public class TelegramBotService {
             request.replyToMessageId(update.message().messageId());
         }
         // request.replyMarkup(new ForceReply());
-        SendResponse sendResponse = bot.execute(request);
-        if(!sendResponse.isOk()){
-            log.error(sendResponse.message().toString());
-        }
+        return request;
     }
 
     /**
@@ -135,44 +299,68 @@ public class TelegramBotService {
     /**
      * Обрабатывает команду, полученную от пользователя Telegram, выполняя соответствующее действие.
      *  @param update Сообщение, полученное от пользователя.
+     *  @return будущее завершение отправки ответа на команду
      */
-    private void processCommand(Update update) {
+    private CompletableFuture<Void> processCommand(Update update) {
         if (update.message().text().equalsIgnoreCase("/start")) {
-            presentation(update);
+            return presentation(update);
         } else if (update.message().text().equalsIgnoreCase("/usage")) {
-            printUsage(update);
+            return printUsage(update);
         } else if (update.message().text().equalsIgnoreCase("/reset")) {
-            resetUserContext(update);
+            return resetUserContext(update);
         } else {
             log.warn("Неизвестная команда:" +update.message().text());
+            return CompletableFuture.completedFuture(null);
         }
     }
 
     /**
-     * Отправляет пользовательское сообщение презентации пользователю.
+     * Отправляет пользовательское сообщение презентации пользователю. Если презентацию приходится запрашивать
+     * у OpenAI, поток команд ее не ждет: ответ отправляется, когда будет готов.
      *  @param update Сообщение, полученное от пользователя.
      */
-    private void presentation(Update update) {
-        String response = this.gptService.sendCustomMessage(update, presentationText);
-        sendReply(update, response);
+    private CompletableFuture<Void> presentation(Update update) {
+        return this.presentationService.getPresentationAsync(update).thenCompose(response -> sendReply(update, response));
     }
 
     /**
-     * Отправляет сообщение пользователю с информацией о количестве токенов, которые в настоящее время используются при генерации GPT.
+     * Отправляет сообщение пользователю с информацией о количестве токенов, которые он и бот в целом израсходовали при генерации GPT.
      * @param update Сообщение, полученное от пользователя.
      */
-    private void printUsage(Update update) {
-        String message = String.format("Счетчик токенов: %d",gptService.getNumTokens());
-        sendReply(update, message);
+    private CompletableFuture<Void> printUsage(Update update) {
+        long[] own = tokenUsage.getUser(update.message().from().id());
+        String message = String.format("Ваши токены: запрос %d, ответ %d", own[0], own[1]);
+        if (!isPrivate(update)) {
+            long[] chat = tokenUsage.getChat(update.message().chat().id());
+            message += String.format("%nТокены этого чата: запрос %d, ответ %d", chat[0], chat[1]);
+        }
+        long[] today = tokenUsage.getToday();
+        long[] hour = tokenUsage.getThisHour();
+        message += String.format("%nСчетчик токенов: %d (сегодня %d, за этот час %d)",
+                gptService.getNumTokens(), today[0] + today[1], hour[0] + hour[1]);
+        for (Map.Entry<String, long[]> model : tokenUsage.getModels().entrySet()) {
+            message += String.format("%n  %s: запрос %d, ответ %d", model.getKey(), model.getValue()[0], model.getValue()[1]);
+        }
+        CacheStats stats = gptService.getContextStats();
+        message += String.format("%nКонтекстов в памяти: %d (попаданий %d, промахов %d, вытеснено %d)",
+                gptService.getContextSize(), stats.hitCount(), stats.missCount(), stats.evictionCount());
+        CacheStats completions = gptService.getCompletionCacheStats();
+        if (completions != null) {
+            message += String.format("%nКэш ответов: попаданий %d, промахов %d (%.0f%%)",
+                    completions.hitCount(), completions.missCount(), completions.hitRate() * 100);
+        }
+        message += String.format("%nОбъединено одинаковых запросов: %d%nЗапросов к OpenAI в работе: %d%nСообщений в очереди отправки: %d",
+                gptService.getCoalescedCalls(), gptService.getPendingCalls(), sender.getQueuedRequests());
+        return sendReply(update, message);
     }
 
     /**
      * Сбрасывает контекст пользователя, очищая историю сообщений. Примеры будут загружены обратно, когда контекст создается заново.
      *  @param update Сообщение, полученное от пользователя.
      */
-    private void resetUserContext(Update update) {
+    private CompletableFuture<Void> resetUserContext(Update update) {
         String message = gptService.resetUserContext(update);
-        sendReply(update, message);
+        return sendReply(update, message);
     }
 
 
@@ -0,0 +1,241 @@
+/**
+ * Этот класс представляет очередь исходящих запросов к Telegram. Запросы одного чата отправляются строго по очереди,
+ * не чаще лимитов Telegram для приватного чата, группы и бота в целом. Отправка асинхронная: поток, который
+ * поставил запрос в очередь, не ждет ответа Telegram. На ответ 429 запрос повторяется через указанное
+ * в retry_after время, на сетевую ошибку - с нарастающей задержкой.
+ */
+
+package ru.valkerik.services;
+
+import com.pengrad.telegrambot.Callback;
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.request.BaseRequest;
+import com.pengrad.telegrambot.response.BaseResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.valkerik.utils.TokenBucket;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Slf4j
+@Service
+public class TelegramSender {
+
+    @Value("${bot.send.global.per.second:30}")
+    private int globalPerSecond;
+    @Value("${bot.send.private.per.second:1}")
+    private int privatePerSecond;
+    @Value("${bot.send.group.per.minute:20}")
+    private int groupPerMinute;
+    @Value("${bot.send.burst:3}")
+    private int burst;
+    @Value("${bot.send.retries:3}")
+    private int maxRetries;
+    @Autowired
+    private Metrics metrics;
+
+    private TelegramBot bot;
+    private TokenBucket global;
+    // Очереди чатов; очередь удаляется, когда она пуста и ее ограничитель восстановился
+    private final ConcurrentHashMap<Long, ChatQueue> queues = new ConcurrentHashMap<>();
+    // Планировщик только решает, когда отправлять, сами запросы выполняет OkHttp внутри библиотеки бота
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    private void init() {
+        this.global = new TokenBucket(globalPerSecond, 1, TimeUnit.SECONDS, globalPerSecond);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "telegram-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.MINUTES);
+        metrics.gauge("outbound_queue", this::getQueuedRequests);
+    }
+
+    @PreDestroy
+    private void dispose() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Задает бота, через которого отправляются запросы. Вызывается при запуске бота.
+     * @param bot экземпляр бота Telegram
+     */
+    public void start(TelegramBot bot) {
+        this.bot = bot;
+    }
+
+    /**
+     * Ставит запрос в очередь чата.
+     * @param chatId чат, в который отправляется запрос
+     * @param group true для группы, у которой более строгий лимит
+     * @param request запрос к Telegram
+     * @return будущий ответ Telegram; при исчерпании повторов ответ может быть неуспешным
+     */
+    public <T extends BaseRequest<T, R>, R extends BaseResponse> CompletableFuture<R> send(long chatId, boolean group, T request) {
+        Item<T, R> item = new Item<>(request);
+        ChatQueue[] started = new ChatQueue[1];
+        // очередь меняется под блокировкой ячейки карты, чтобы ее не удалили одновременно с добавлением
+        queues.compute(chatId, (id, queue) -> {
+            if (queue == null) {
+                queue = new ChatQueue(group
+                        ? new TokenBucket(groupPerMinute, 1, TimeUnit.MINUTES, burst)
+                        : new TokenBucket(privatePerSecond, 1, TimeUnit.SECONDS, burst));
+            }
+            synchronized (queue) {
+                queue.items.add(item);
+                if (!queue.busy) {
+                    queue.busy = true;
+                    started[0] = queue;
+                }
+            }
+            return queue;
+        });
+        if (started[0] != null) {
+            scheduler.execute(() -> dispatch(started[0]));
+        }
+        return item.future;
+    }
+
+    /**
+     * @return количество запросов, ожидающих отправки во всех чатах
+     */
+    public int getQueuedRequests() {
+        int count = 0;
+        for (ChatQueue queue : queues.values()) {
+            synchronized (queue) {
+                count += queue.items.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Отправляет первый запрос очереди, если это разрешают лимиты чата и бота, иначе откладывает попытку.
+     * Для каждой очереди одновременно выполняется не больше одного запроса.
+     * @param queue очередь чата
+     */
+    private void dispatch(ChatQueue queue) {
+        Item<?, ?> item;
+        synchronized (queue) {
+            item = queue.items.peek();
+            if (item == null) {
+                queue.busy = false;
+                return;
+            }
+        }
+        long now = System.nanoTime();
+        long wait = Math.max(queue.bucket.waitNanos(now), global.waitNanos(now));
+        if (wait == 0) {
+            // лимит чата расходует только этот поток, поэтому после общего лимита он не откажет
+            wait = global.tryAcquire(now);
+        }
+        if (wait > 0) {
+            scheduler.schedule(() -> dispatch(queue), wait, TimeUnit.NANOSECONDS);
+            return;
+        }
+        queue.bucket.tryAcquire(now);
+        execute(queue, item);
+    }
+
+    private <T extends BaseRequest<T, R>, R extends BaseResponse> void execute(ChatQueue queue, Item<T, R> item) {
+        long sent = System.nanoTime();
+        if (item.attempts == 0) {
+            metrics.recordNanos("telegram_queue_wait", sent - item.queuedNanos);
+        }
+        bot.execute(item.request, new Callback<T, R>() {
+            @Override
+            public void onResponse(T request, R response) {
+                metrics.record("telegram_send", sent);
+                if (!response.isOk()) {
+                    metrics.error(response.errorCode() == 429 ? "telegram_429" : "telegram_error");
+                } else {
+                    metrics.count("telegram_sent");
+                }
+                if (!response.isOk() && response.errorCode() == 429 && item.attempts < maxRetries) {
+                    item.attempts++;
+                    Integer retryAfter = response.parameters() != null ? response.parameters().retryAfter() : null;
+                    long delay = retryAfter != null ? retryAfter : 1;
+                    log.warn("Telegram ограничил отправку в чат, повтор через {} с", delay);
+                    scheduler.schedule(() -> dispatch(queue), delay, TimeUnit.SECONDS);
+                    return;
+                }
+                done(queue);
+                item.future.complete(response);
+            }
+
+            @Override
+            public void onFailure(T request, IOException e) {
+                metrics.error("telegram_io");
+                if (item.attempts < maxRetries) {
+                    long delay = 500L << item.attempts++;
+                    log.warn("Не удалось отправить запрос в Telegram ({}), повтор через {} мс", e.getMessage(), delay);
+                    scheduler.schedule(() -> dispatch(queue), delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                done(queue);
+                item.future.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Убирает отправленный запрос из очереди и переходит к следующему.
+     * @param queue очередь чата
+     */
+    private void done(ChatQueue queue) {
+        synchronized (queue) {
+            queue.items.poll();
+        }
+        if (!scheduler.isShutdown()) {
+            scheduler.execute(() -> dispatch(queue));
+        }
+    }
+
+    /**
+     * Удаляет пустые очереди, ограничители которых полностью восстановились.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Long chatId : queues.keySet()) {
+            queues.computeIfPresent(chatId, (id, queue) -> {
+                synchronized (queue) {
+                    return !queue.busy && queue.items.isEmpty() && queue.bucket.isIdle(now) ? null : queue;
+                }
+            });
+        }
+    }
+
+    private static final class ChatQueue {
+        private final TokenBucket bucket;
+        private final ArrayDeque<Item<?, ?>> items = new ArrayDeque<>();
+        // выполняется или запланирован dispatch этой очереди
+        private boolean busy;
+
+        ChatQueue(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private static final class Item<T extends BaseRequest<T, R>, R extends BaseResponse> {
+        private final T request;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        private final long queuedNanos = System.nanoTime();
+        private int attempts;
+
+        Item(T request) {
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Этот класс ведет учет израсходованных токенов: отдельно токены запроса и ответа, для каждого пользователя,
+ * чата и модели, а также почасовые и посуточные итоги за последние сутки-двое и месяц. Счетчики - LongAdder,
+ * поэтому одновременные ответы не мешают друг другу. Учет периодически сохраняется в файл и загружается
+ * при запуске, так что перезапуск его не сбрасывает.
+ */
+
+package ru.valkerik.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+@Slf4j
+@Service
+public class TokenUsage {
+
+    private static final int HOURS = 48;
+    private static final int DAYS = 31;
+    private static final long HOUR_MILLIS = 3_600_000L;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    @Value("${bot.usage.file:token-usage.json}")
+    private String file;
+    @Value("${bot.usage.flush.minutes:5}")
+    private long flushMinutes;
+    @Autowired
+    private ObjectMapper mapper;
+
+    private final Counter total = new Counter();
+    private final ConcurrentHashMap<Long, Counter> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Counter> chats = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> models = new ConcurrentHashMap<>();
+    private final Ring hours = new Ring(HOURS, HOUR_MILLIS);
+    private final Ring days = new Ring(DAYS, DAY_MILLIS);
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    private void init() {
+        load();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "token-usage-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::store, flushMinutes, flushMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void dispose() {
+        flusher.shutdown();
+        store();
+    }
+
+    /**
+     * Учитывает токены одного ответа.
+     * @param userId пользователь или null, если запрос не от пользователя (презентация)
+     * @param chatId чат или null
+     * @param model модель, которая ответила
+     * @param promptTokens токены запроса
+     * @param completionTokens токены ответа
+     */
+    public void record(Long userId, Long chatId, String model, long promptTokens, long completionTokens) {
+        total.add(promptTokens, completionTokens);
+        if (userId != null) {
+            users.computeIfAbsent(userId, id -> new Counter()).add(promptTokens, completionTokens);
+        }
+        if (chatId != null) {
+            chats.computeIfAbsent(chatId, id -> new Counter()).add(promptTokens, completionTokens);
+        }
+        if (model != null) {
+            models.computeIfAbsent(model, name -> new Counter()).add(promptTokens, completionTokens);
+        }
+        long now = System.currentTimeMillis();
+        hours.add(now, promptTokens, completionTokens);
+        days.add(now, promptTokens, completionTokens);
+    }
+
+    /**
+     * @return все токены с начала учета
+     */
+    public long getTotal() {
+        return total.prompt.sum() + total.completion.sum();
+    }
+
+    /**
+     * @param userId пользователь
+     * @return токены запроса и ответа пользователя: [prompt, completion]
+     */
+    public long[] getUser(long userId) {
+        Counter counter = users.get(userId);
+        return counter == null ? new long[2] : counter.get();
+    }
+
+    /**
+     * @param chatId чат
+     * @return токены запроса и ответа чата: [prompt, completion]
+     */
+    public long[] getChat(long chatId) {
+        Counter counter = chats.get(chatId);
+        return counter == null ? new long[2] : counter.get();
+    }
+
+    /**
+     * @return токены запроса и ответа по моделям, упорядоченные по имени модели
+     */
+    public Map<String, long[]> getModels() {
+        Map<String, long[]> result = new TreeMap<>();
+        models.forEach((model, counter) -> result.put(model, counter.get()));
+        return result;
+    }
+
+    /**
+     * @return токены запроса и ответа за текущие сутки (UTC): [prompt, completion]
+     */
+    public long[] getToday() {
+        return days.get(System.currentTimeMillis());
+    }
+
+    /**
+     * @return токены запроса и ответа за текущий час: [prompt, completion]
+     */
+    public long[] getThisHour() {
+        return hours.get(System.currentTimeMillis());
+    }
+
+    /**
+     * Атомарно записывает снимок учета в файл через временный файл.
+     */
+    private synchronized void store() {
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("total", total.get());
+        snapshot.put("users", snapshot(users));
+        snapshot.put("chats", snapshot(chats));
+        snapshot.put("models", snapshot(models));
+        snapshot.put("hours", hours.snapshot());
+        snapshot.put("days", days.snapshot());
+        Path path = Paths.get(file).toAbsolutePath();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            mapper.writeValue(tmp.toFile(), snapshot);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Не удалось сохранить учет токенов в " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Загружает сохраненный учет, если файл есть.
+     */
+    private void load() {
+        Path path = Paths.get(file);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            Snapshot snapshot = mapper.readValue(path.toFile(), Snapshot.class);
+            if (snapshot.total != null) {
+                total.add(snapshot.total[0], snapshot.total[1]);
+            }
+            restore(snapshot.users, users, Long::valueOf);
+            restore(snapshot.chats, chats, Long::valueOf);
+            restore(snapshot.models, models, name -> name);
+            hours.restore(snapshot.hours);
+            days.restore(snapshot.days);
+        } catch (IOException | RuntimeException e) {
+            log.error("Не удалось прочитать учет токенов из " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static <K> Map<String, long[]> snapshot(Map<K, Counter> counters) {
+        Map<String, long[]> result = new HashMap<>();
+        counters.forEach((key, counter) -> result.put(String.valueOf(key), counter.get()));
+        return result;
+    }
+
+    private static <K> void restore(Map<String, long[]> saved, Map<K, Counter> counters,
+                                    Function<String, K> key) {
+        if (saved != null) {
+            saved.forEach((name, value) -> counters.computeIfAbsent(key.apply(name), k -> new Counter()).add(value[0], value[1]));
+        }
+    }
+
+    /**
+     * Сохраненный снимок учета.
+     */
+    private static final class Snapshot {
+        public long[] total;
+        public Map<String, long[]> users;
+        public Map<String, long[]> chats;
+        public Map<String, long[]> models;
+        public long[][] hours;
+        public long[][] days;
+    }
+
+    /**
+     * Токены запроса и ответа; LongAdder распределяет одновременные обновления по ячейкам.
+     */
+    private static final class Counter {
+        private final LongAdder prompt = new LongAdder();
+        private final LongAdder completion = new LongAdder();
+
+        void add(long promptTokens, long completionTokens) {
+            prompt.add(promptTokens);
+            completion.add(completionTokens);
+        }
+
+        long[] get() {
+            return new long[]{prompt.sum(), completion.sum()};
+        }
+    }
+
+    /**
+     * Кольцо итогов за последние N интервалов. Ячейка интервала переиспользуется, когда кольцо проходит
+     * полный круг; номер интервала хранится рядом, чтобы устаревшая ячейка обнулялась при первой записи.
+     */
+    private static final class Ring {
+        private final int size;
+        private final long intervalMillis;
+        private final AtomicLongArray stamps;
+        // prompt и completion интервала i хранятся в ячейках 2i и 2i+1
+        private final AtomicLongArray tokens;
+
+        Ring(int size, long intervalMillis) {
+            this.size = size;
+            this.intervalMillis = intervalMillis;
+            this.stamps = new AtomicLongArray(size);
+            this.tokens = new AtomicLongArray(2 * size);
+        }
+
+        void add(long nowMillis, long promptTokens, long completionTokens) {
+            int slot = slot(nowMillis);
+            roll(slot, nowMillis / intervalMillis);
+            tokens.addAndGet(2 * slot, promptTokens);
+            tokens.addAndGet(2 * slot + 1, completionTokens);
+        }
+
+        long[] get(long nowMillis) {
+            int slot = slot(nowMillis);
+            if (stamps.get(slot) != nowMillis / intervalMillis) {
+                return new long[2];
+            }
+            return new long[]{tokens.get(2 * slot), tokens.get(2 * slot + 1)};
+        }
+
+        /**
+         * Обнуляет ячейку, если в ней лежат итоги прошлого круга. Запись, попавшая между сменой номера
+         * и обнулением, может потеряться; для статистики это допустимо.
+         */
+        private void roll(int slot, long interval) {
+            long stamp = stamps.get(slot);
+            if (stamp != interval && stamp < interval && stamps.compareAndSet(slot, stamp, interval)) {
+                tokens.set(2 * slot, 0);
+                tokens.set(2 * slot + 1, 0);
+            }
+        }
+
+        private int slot(long millis) {
+            return (int) Math.floorMod(millis / intervalMillis, (long) size);
+        }
+
+        long[][] snapshot() {
+            long[][] result = new long[size][];
+            for (int i = 0; i < size; i++) {
+                result[i] = new long[]{stamps.get(i), tokens.get(2 * i), tokens.get(2 * i + 1)};
+            }
+            return result;
+        }
+
+        void restore(long[][] saved) {
+            if (saved == null) {
+                return;
+            }
+            for (long[] entry : saved) {
+                int slot = (int) Math.floorMod(entry[0], (long) size);
+                if (entry[0] > stamps.get(slot)) {
+                    stamps.set(slot, entry[0]);
+                    tokens.set(2 * slot, entry[1]);
+                    tokens.set(2 * slot + 1, entry[2]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Стратегия выполнения обработки обновлений. Режим задается свойством bot.worker.mode:
+ * fair - очереди чатов, которые обслуживаются взвешенно-справедливо, и отдельная быстрая очередь команд (см. FairUpdateExecutor);
+ * partitioned - однопоточные исполнители, между которыми чаты распределяются по идентификатору (порядок в чате сохраняется);
+ * pool - общий ограниченный пул потоков;
+ * virtual - отдельный виртуальный поток на каждое обновление, если JDK их поддерживает (Java 21+), иначе pool.
+ * В режимах pool и virtual порядок сообщений одного пользователя сохраняет очередь ходов в GptService,
+ * а команды могут выполняться параллельно с ними.
+ */
+
+package ru.valkerik.services;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Slf4j
+abstract class UpdateExecutor {
+
+    /**
+     * Создает исполнитель заданного режима.
+     * @param mode partitioned, pool или virtual
+     * @param threads количество потоков платформы
+     * @param queueSize емкость очереди общего пула или очередей чатов
+     * @param privateWeight вес приватного чата в режиме fair
+     * @param groupWeight вес группы в режиме fair
+     * @return исполнитель обновлений
+     */
+    static UpdateExecutor create(String mode, int threads, int queueSize, double privateWeight, double groupWeight) {
+        threads = Math.max(1, threads);
+        switch (mode.toLowerCase()) {
+            case "fair":
+                return new FairUpdateExecutor(threads, queueSize, privateWeight, groupWeight);
+            case "partitioned":
+                return new Partitioned(threads);
+            case "pool":
+                return new Shared(boundedPool(threads, queueSize));
+            case "virtual":
+                ExecutorService virtual = virtualThreadPerTask();
+                if (virtual != null) {
+                    return new Shared(virtual);
+                }
+                log.warn("Виртуальные потоки недоступны в этой JDK, используется общий пул");
+                return new Shared(boundedPool(threads, queueSize));
+            default:
+                throw new IllegalArgumentException("Unknown bot.worker.mode: " + mode);
+        }
+    }
+
+    /**
+     * Выполняет задачу обработки обновления чата.
+     * @param chatId идентификатор чата
+     * @param task обработка обновления
+     */
+    abstract void execute(long chatId, Runnable task);
+
+    /**
+     * Выполняет задачу обработки обновления с учетом вида чата и команды. Быстрая очередь команд и веса чатов
+     * есть только в режиме fair, остальные режимы выполняют задачу как обычно.
+     * @param chatId идентификатор чата
+     * @param group true для группы
+     * @param command true для команды
+     * @param task обработка обновления
+     */
+    void execute(long chatId, boolean group, boolean command, Runnable task) {
+        execute(chatId, task);
+    }
+
+    /**
+     * Прекращает прием задач и дожидается уже принятых.
+     * @param timeout максимальное время ожидания
+     * @param unit единица измерения времени
+     * @throws InterruptedException, если ожидание прервано
+     */
+    abstract void shutdown(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Ограниченный пул: когда очередь заполнена, задачу выполняет поток приема обновлений,
+     * и прием замедляется вместо неограниченного роста очереди.
+     */
+    private static ExecutorService boundedPool(int threads, int queueSize) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                r -> new Thread(r, "bot-worker-" + counter.getAndIncrement()),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() появился в Java 21, проект собирается для Java 17,
+     * поэтому метод ищется во время выполнения.
+     * @return исполнитель или null, если виртуальные потоки не поддерживаются
+     */
+    private static ExecutorService virtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static final class Partitioned extends UpdateExecutor {
+        private final ExecutorService[] workers;
+
+        Partitioned(int threads) {
+            this.workers = new ExecutorService[threads];
+            for (int i = 0; i < workers.length; i++) {
+                String threadName = "bot-worker-" + i;
+                workers[i] = Executors.newSingleThreadExecutor(r -> new Thread(r, threadName));
+            }
+        }
+
+        @Override
+        void execute(long chatId, Runnable task) {
+            workers[Math.floorMod(Long.hashCode(chatId), workers.length)].execute(task);
+        }
+
+        @Override
+        void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+            for (ExecutorService worker : workers) {
+                worker.shutdown();
+            }
+            for (ExecutorService worker : workers) {
+                worker.awaitTermination(timeout, unit);
+            }
+        }
+    }
+
+    private static final class Shared extends UpdateExecutor {
+        private final ExecutorService executor;
+
+        Shared(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        void execute(long chatId, Runnable task) {
+            executor.execute(task);
+        }
+
+        @Override
+        void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+            executor.shutdown();
+            executor.awaitTermination(timeout, unit);
+        }
+    }
+}
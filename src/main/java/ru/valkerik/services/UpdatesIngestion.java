@@ -0,0 +1,317 @@
+/**
+ * Этот класс отвечает за получение обновлений от Telegram методом long polling или через webhook.
+ * В режиме опроса он настраивает таймаут опроса, фильтр типов обновлений и размер пакета. Telegram получает
+ * подтверждение только тех обновлений, обработка которых в исполнителях бота завершилась без пропусков, и то же
+ * смещение сохраняется в файл: после перезапуска бот продолжает с первого необработанного обновления, а Telegram
+ * еще хранит его, поэтому принятые, но не обработанные обновления не теряются, а обработанные не повторяются.
+ * Обработанным обновление считается, когда ответ на него отправлен, поэтому ответ, который в момент падения
+ * ждал OpenAI, после перезапуска будет подготовлен заново. Telegram возвращает не больше bot.updates.limit обновлений,
+ * начиная с первого неподтвержденного, поэтому столько же обновлений может одновременно ждать ответа; следующие
+ * приходят по мере отправки ответов.
+ * В режиме webhook встроенный HTTP-сервер принимает обновления, которые Telegram отправляет сам, проверяет
+ * секретный заголовок и сразу подтверждает получение, а обработка идет в исполнителях бота. Такой режим
+ * не ждет очередного опроса и позволяет запускать несколько экземпляров бота за балансировщиком.
+ */
+
+package ru.valkerik.services;
+
+import com.pengrad.telegrambot.BotUtils;
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.UpdatesListener;
+import com.pengrad.telegrambot.model.Update;
+import com.pengrad.telegrambot.request.GetUpdates;
+import com.pengrad.telegrambot.request.SetWebhook;
+import com.pengrad.telegrambot.response.BaseResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+@Slf4j
+@Service
+public class UpdatesIngestion {
+
+    @Value("${bot.updates.timeout:50}")
+    private int pollTimeout;
+    @Value("${bot.updates.limit:100}")
+    private int batchLimit;
+    @Value("${bot.updates.allowed:message}")
+    private String[] allowedUpdates;
+    @Value("${bot.updates.offset.file:updates.offset}")
+    private String offsetFile;
+
+    @Value("${bot.updates.mode:polling}")
+    private String mode;
+    @Value("${bot.webhook.url:}")
+    private String webhookUrl;
+    @Value("${bot.webhook.secret:}")
+    private String webhookSecret;
+    @Value("${bot.webhook.port:8080}")
+    private int webhookPort;
+    @Value("${bot.webhook.path:/telegram}")
+    private String webhookPath;
+    @Value("${bot.webhook.threads:4}")
+    private int webhookThreads;
+    @Value("${bot.webhook.max.connections:40}")
+    private int webhookMaxConnections;
+
+    private static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+    // Сколько поток опроса ждет обработки, если пакет состоит только из уже переданных обновлений
+    private static final long REDELIVERY_WAIT_MILLIS = 1000;
+
+    private TelegramBot bot;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+
+    // Переданные исполнителям, но еще не обработанные обновления и наибольший переданный идентификатор
+    private final TreeSet<Integer> pending = new TreeSet<>();
+    private int lastHanded = -1;
+    private int storedOffset;
+
+    /**
+     * Запускает опрос обновлений. Новые обновления пакета передаются обработчику, после чего Telegram получает
+     * подтверждение обработанных обновлений, и смещение сохраняется в файл. Необработанные обновления Telegram
+     * присылает снова, повторы пропускаются.
+     * @param bot экземпляр бота Telegram
+     * @param handler обработчик одного обновления, не должен блокировать поток опроса надолго; второй аргумент
+     *                нужно вызвать, когда обработка обновления завершена
+     */
+    public void start(TelegramBot bot, BiConsumer<Update, Runnable> handler) {
+        this.bot = bot;
+        if (mode.equalsIgnoreCase("webhook")) {
+            startWebhook(handler);
+            return;
+        }
+        int offset = loadOffset();
+        synchronized (pending) {
+            lastHanded = offset - 1;
+        }
+        synchronized (this) {
+            storedOffset = offset;
+        }
+        GetUpdates request = new GetUpdates()
+                .offset(offset)
+                .limit(batchLimit)
+                .timeout(pollTimeout)
+                .allowedUpdates(allowedUpdates);
+        log.info("Запуск получения обновлений: offset={}, limit={}, timeout={}s", offset, batchLimit, pollTimeout);
+        bot.setUpdatesListener(new UpdatesListener() {
+            @Override
+            public int process(List<Update> updates) {
+                int handed = 0;
+                for (Update update : updates) {
+                    int id = update.updateId();
+                    synchronized (pending) {
+                        if (id <= lastHanded) {
+                            // повтор еще не подтвержденного обновления, оно уже в работе
+                            continue;
+                        }
+                        lastHanded = id;
+                        pending.add(id);
+                    }
+                    handed++;
+                    handler.accept(update, () -> processed(id));
+                }
+                int offset = processedOffset(handed == 0);
+                storeOffset(offset);
+                return offset > 0 ? offset - 1 : UpdatesListener.CONFIRMED_UPDATES_NONE;
+            }
+        }, e -> log.error("UpdatesIngestion. getUpdates Error : " + e.getMessage()), request);
+    }
+
+    /**
+     * Запускает HTTP-сервер webhook и, если задан bot.webhook.url, регистрирует его в Telegram. Потоки сервера
+     * только разбирают обновление и передают его обработчику, поэтому их нужно немного.
+     * @param handler обработчик одного обновления, не должен блокировать поток сервера надолго
+     */
+    private void startWebhook(BiConsumer<Update, Runnable> handler) {
+        if (webhookSecret.isEmpty()) {
+            log.warn("bot.webhook.secret не задан, webhook принимает запросы от кого угодно");
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(webhookPort), 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Не удалось запустить webhook на порту " + webhookPort, e);
+        }
+        AtomicInteger counter = new AtomicInteger();
+        serverExecutor = Executors.newFixedThreadPool(Math.max(1, webhookThreads),
+                r -> new Thread(r, "bot-webhook-" + counter.getAndIncrement()));
+        server.setExecutor(serverExecutor);
+        server.createContext(webhookPath, exchange -> receive(exchange, handler));
+        server.start();
+        log.info("Webhook слушает порт {}, путь {}", webhookPort, webhookPath);
+
+        if (!webhookUrl.isEmpty()) {
+            SetWebhook request = new SetWebhook()
+                    .url(webhookUrl)
+                    .maxConnections(webhookMaxConnections)
+                    .allowedUpdates(allowedUpdates);
+            if (!webhookSecret.isEmpty()) {
+                request.secretToken(webhookSecret);
+            }
+            BaseResponse response = bot.execute(request);
+            if (!response.isOk()) {
+                log.error("Не удалось зарегистрировать webhook " + webhookUrl + ": " + response.description());
+            }
+        }
+    }
+
+    /**
+     * Принимает один запрос Telegram: проверяет секрет, разбирает обновление, подтверждает получение
+     * и передает обновление обработчику.
+     * @param exchange HTTP-запрос
+     * @param handler обработчик одного обновления
+     */
+    private void receive(HttpExchange exchange, BiConsumer<Update, Runnable> handler) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!webhookSecret.isEmpty() && !secretMatches(exchange.getRequestHeaders().getFirst(SECRET_HEADER))) {
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            Update update;
+            try (Reader body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                update = BotUtils.parseUpdate(body);
+            } catch (RuntimeException e) {
+                log.error("UpdatesIngestion. Не удалось разобрать обновление: " + e.getMessage());
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            // Telegram повторяет обновление, пока не получит ответ, поэтому подтверждаем до обработки
+            exchange.sendResponseHeaders(200, -1);
+            if (update != null) {
+                handler.accept(update, () -> { });
+            }
+        }
+    }
+
+    /**
+     * Отмечает обновление обработанным.
+     * @param id идентификатор обновления
+     */
+    private void processed(int id) {
+        synchronized (pending) {
+            pending.remove(id);
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * Вычисляет смещение, до которого все переданные обновления обработаны.
+     * @param await true, если нового в пакете не было: тогда Telegram сразу вернет те же обновления,
+     *              и вместо холостого опроса поток ждет, пока обработка продвинется
+     * @return идентификатор первого необработанного обновления
+     */
+    private int processedOffset(boolean await) {
+        synchronized (pending) {
+            int offset = pending.isEmpty() ? lastHanded + 1 : pending.first();
+            if (await && !pending.isEmpty()) {
+                long deadline = System.currentTimeMillis() + REDELIVERY_WAIT_MILLIS;
+                long wait;
+                while (!pending.isEmpty() && pending.first() == offset
+                        && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        pending.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                offset = pending.isEmpty() ? lastHanded + 1 : pending.first();
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Сохраняет смещение обработанных обновлений. Вызывается при остановке, после того как ответы на уже
+     * принятые обновления отправлены или время их ожидания вышло.
+     */
+    public void storeProcessedOffset() {
+        if (server == null && bot != null) {
+            storeOffset(processedOffset(false));
+        }
+    }
+
+    /**
+     * Сравнивает секрет за постоянное время, чтобы его нельзя было подобрать по времени ответа.
+     * @param secret значение заголовка X-Telegram-Bot-Api-Secret-Token
+     * @return true, если секрет совпадает
+     */
+    private boolean secretMatches(String secret) {
+        return secret != null && MessageDigest.isEqual(
+                secret.getBytes(StandardCharsets.UTF_8), webhookSecret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Останавливает опрос обновлений или HTTP-сервер webhook. Смещение обновлений, которые исполнители
+     * еще обрабатывают, сохраняет storeProcessedOffset, а webhook остается зарегистрированным,
+     * чтобы его могли принимать другие экземпляры.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+            serverExecutor.shutdown();
+        } else if (bot != null) {
+            bot.removeGetUpdatesListener();
+        }
+    }
+
+    /**
+     * Читает сохраненное смещение из файла.
+     * @return смещение, с которого нужно продолжить опрос, или 0, если файла нет
+     */
+    private int loadOffset() {
+        Path path = Paths.get(offsetFile);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(Files.readString(path, StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            log.error("Не удалось прочитать смещение обновлений из " + offsetFile + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Атомарно записывает смещение в файл через временный файл.
+     * @param offset идентификатор следующего ожидаемого обновления
+     */
+    private synchronized void storeOffset(int offset) {
+        // пишут поток опроса и остановка, смещение в файле только растет
+        if (offset <= storedOffset) {
+            return;
+        }
+        storedOffset = offset;
+        Path path = Paths.get(offsetFile).toAbsolutePath();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.writeString(tmp, Integer.toString(offset), StandardCharsets.UTF_8);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Не удалось сохранить смещение обновлений в " + offsetFile + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,34 +1,234 @@
 package ru.valkerik.utils;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.ToIntFunction;
 /**
-Класс MessageLog расширяет встроенный класс ArrayList в Java и добавляет возможность ограничить максимальное количество элементов, которые он может содержать.
-Если превышено максимальное количество элементов, самые старые элементы удаляются из начала списка.
+Класс MessageLog - список с ограничением на максимальное количество элементов, которые он может содержать,
+а также на их суммарный вес в токенах.
+Если превышено максимальное количество элементов или бюджет токенов, самые старые элементы удаляются из начала списка. Последний элемент сохраняется всегда.
+Суммарный вес хранится вместе со списком, поэтому узнать его можно за O(1).
+Элементы хранятся в кольцевом буфере: у каждого элемента есть порядковый номер, а его ячейка - номер по модулю емкости,
+поэтому добавление в конец и вытеснение из начала не сдвигают массив и выполняются за O(1). Емкость - степень двойки.
+Метод snapshot возвращает неизменяемый снимок журнала без копирования. Журнал не пишет в ячейки, которые могут быть
+видны снимку: если новый элемент должен занять такую ячейку, журнал переезжает в новый массив, а снимок продолжает
+читать старый. Снимок можно передать в другой поток, пока к журналу добавляется следующий ход.
+Сам журнал не потокобезопасен, менять его должен один поток за раз.
 */
-public class MessageLog<E> extends ArrayList<E> {
+public class MessageLog<E> extends AbstractList<E> implements RandomAccess {
+    private static final int MIN_CAPACITY = 8;
+
     private int maxSize;
+    private int maxTokens;
+    private ToIntFunction<? super E> weigher;
+    private int tokens;
+    private Object[] elements = new Object[MIN_CAPACITY];
+    // порядковые номера первого элемента и следующего добавляемого
+    private long head;
+    private long tail;
+    // наименьший номер, который может быть виден снимку текущего массива
+    private long pinned = Long.MAX_VALUE;
 
     public MessageLog(int maxSize) {
+        this(maxSize, Integer.MAX_VALUE, e -> 0);
+    }
+
+    public MessageLog(int maxSize, int maxTokens, ToIntFunction<? super E> weigher) {
         super();
         this.maxSize = maxSize;
+        this.maxTokens = maxTokens;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return суммарное количество токенов элементов журнала
+     */
+    public int getTokens() {
+        return tokens;
+    }
+
+    @Override
+    public E get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return elementAt(elements, head + index);
+    }
+
+    @Override
+    public int size() {
+        return (int) (tail - head);
     }
 
     @Override
     public boolean add(E e) {
-        boolean added = super.add(e);
-        if (size() > maxSize) {
-            removeRange(0, size() - maxSize);
+        append(e);
+        trim();
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        if (c.isEmpty()) {
+            return false;
         }
-        return added;
+        for (E e : c) {
+            append(e);
+        }
+        trim();
+        return true;
+    }
+
+    /**
+     * Заменяет элементы с from по to (не включая to) одним элементом, например кратким содержанием этих элементов.
+     * Элементы после to сдвигаются, поэтому журнал переезжает в новый массив, а прежние снимки остаются как были.
+     * @param from индекс первого заменяемого элемента
+     * @param to индекс за последним заменяемым элементом
+     * @param element новый элемент
+     */
+    public void replaceRange(int from, int to, E element) {
+        int size = size();
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + size);
+        }
+        Object[] old = elements;
+        long oldHead = head;
+        int newSize = size - (to - from) + 1;
+        Object[] copy = new Object[capacityFor(newSize)];
+        head = 0;
+        tail = newSize;
+        for (int i = 0; i < from; i++) {
+            copy[i] = old[slot(old, oldHead + i)];
+        }
+        copy[from] = element;
+        for (int i = to; i < size; i++) {
+            copy[i - to + from + 1] = old[slot(old, oldHead + i)];
+        }
+        for (int i = from; i < to; i++) {
+            tokens -= weigher.applyAsInt(elementAt(old, oldHead + i));
+        }
+        tokens += weigher.applyAsInt(element);
+        elements = copy;
+        pinned = Long.MAX_VALUE;
+        modCount++;
+        trim();
     }
 
     @Override
-    public boolean addAll(int index, java.util.Collection<? extends E> c) {
-        boolean added = super.addAll(index, c);
-        if (size() > maxSize) {
-            removeRange(0, size() - maxSize);
+    public void clear() {
+        // прежний массив может читать снимок, поэтому он не очищается, а заменяется
+        elements = new Object[MIN_CAPACITY];
+        head = 0;
+        tail = 0;
+        pinned = Long.MAX_VALUE;
+        tokens = 0;
+        modCount++;
+    }
+
+    /**
+     * Возвращает неизменяемый снимок текущего содержимого журнала за O(1). Последующие изменения журнала
+     * в снимке не видны.
+     * @return снимок журнала
+     */
+    public List<E> snapshot() {
+        pinned = Math.min(pinned, head);
+        return new Snapshot<>(elements, head, size());
+    }
+
+    /**
+     * Добавляет элемент в конец буфера. Если буфер заполнен или ячейка нового элемента может быть видна снимку,
+     * журнал переезжает в новый массив не меньше удвоенного текущего размера, так что следующий переезд
+     * случится не раньше, чем через столько же добавлений.
+     * @param e новый элемент
+     */
+    private void append(E e) {
+        Object[] elements = this.elements;
+        if (tail - head == elements.length || tail - elements.length >= pinned) {
+            elements = relocate(capacityFor(size() + 1));
+        }
+        elements[slot(elements, tail)] = e;
+        tail++;
+        tokens += weigher.applyAsInt(e);
+        modCount++;
+    }
+
+    /**
+     * Переносит элементы в новый массив на те же номера; старый массив остается снимкам.
+     * @param capacity емкость нового массива
+     * @return новый массив
+     */
+    private Object[] relocate(int capacity) {
+        Object[] old = elements;
+        Object[] copy = new Object[capacity];
+        for (long seq = head; seq < tail; seq++) {
+            copy[slot(copy, seq)] = old[slot(old, seq)];
+        }
+        elements = copy;
+        pinned = Long.MAX_VALUE;
+        return copy;
+    }
+
+    /**
+     * Удаляет самые старые элементы, пока журнал не уложится в ограничения по количеству и токенам.
+     */
+    private void trim() {
+        while (tail - head > 1 && (tail - head > maxSize || tokens > maxTokens)) {
+            int slot = slot(elements, head);
+            tokens -= weigher.applyAsInt(elementAt(elements, head));
+            if (head < pinned) {
+                // ячейку не видит ни один снимок, ссылку можно отпустить
+                elements[slot] = null;
+            }
+            head++;
+            modCount++;
+        }
+    }
+
+    /**
+     * @return степень двойки не меньше удвоенного размера, чтобы номер ячейки вычислялся маской
+     */
+    private static int capacityFor(int size) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, 2 * size - 1)) << 1);
+    }
+
+    private static int slot(Object[] elements, long seq) {
+        return (int) seq & (elements.length - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> E elementAt(Object[] elements, long seq) {
+        return (E) elements[slot(elements, seq)];
+    }
+
+    /**
+     * Неизменяемый снимок журнала: номера элементов с from по from + size в массиве, в ячейки которых журнал
+     * больше не пишет.
+     */
+    private static final class Snapshot<E> extends AbstractList<E> implements RandomAccess {
+        private final Object[] elements;
+        private final long from;
+        private final int size;
+
+        Snapshot(Object[] elements, long from, int size) {
+            this.elements = elements;
+            this.from = from;
+            this.size = size;
+        }
+
+        @Override
+        public E get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return elementAt(elements, from + index);
+        }
+
+        @Override
+        public int size() {
+            return size;
         }
-        return added;
     }
 
 }
@@ -0,0 +1,46 @@
+package ru.valkerik.utils;
+
+import ru.valkerik.model.request.ChatRequest;
+import ru.valkerik.model.request.Message;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+/**
+Класс RequestHasher вычисляет ключ запроса чата: SHA-256 от модели, температуры и всех сообщений.
+Одинаковые по содержанию запросы получают одинаковый ключ, поэтому его можно использовать для кэширования ответов.
+Каждое поле записывается вместе с длиной, чтобы разные наборы строк не давали одинаковую последовательность байт.
+*/
+public class RequestHasher {
+
+    private RequestHasher() {
+    }
+
+    /**
+     * @param request запрос чата
+     * @return шестнадцатеричная строка SHA-256
+     */
+    public static String hash(ChatRequest request) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, request.getModel());
+        update(digest, String.valueOf(request.getTemperature()));
+        for (Message message : request.getMessages()) {
+            update(digest, message.getRole());
+            update(digest, message.getContent());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        int length = value == null ? -1 : bytes.length;
+        digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        digest.update(bytes);
+    }
+}
@@ -0,0 +1,97 @@
+package ru.valkerik.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Класс TokenBucket ограничивает частоту событий: в среднем не больше rate событий за период и не больше burst подряд.
+Вместо счетчика токенов хранится одно число - теоретическое время следующего события (алгоритм GCRA), поэтому
+проверка выполняется за O(1) одной операцией compareAndSet, без блокировок.
+*/
+public class TokenBucket {
+    // Интервал между событиями при равномерном потоке
+    private final long intervalNanos;
+    // Насколько теоретическое время следующего события может опережать текущее: burst интервалов
+    private final long toleranceNanos;
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param rate количество событий за период
+     * @param period длительность периода
+     * @param unit единица измерения периода
+     * @param burst сколько событий разрешено подряд
+     */
+    public TokenBucket(double rate, long period, TimeUnit unit, int burst) {
+        this.intervalNanos = Math.max(1, (long) (unit.toNanos(period) / rate));
+        this.toleranceNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    /**
+     * Пытается разрешить одно событие.
+     * @param now текущее System.nanoTime()
+     * @return 0, если событие разрешено, иначе через сколько наносекунд его можно будет разрешить
+     */
+    public long tryAcquire(long now) {
+        return tryAcquire(now, 1);
+    }
+
+    /**
+     * Пытается разрешить несколько событий сразу, например расход нескольких токенов.
+     * @param now текущее System.nanoTime()
+     * @param permits количество событий
+     * @return 0, если события разрешены, иначе через сколько наносекунд их можно будет разрешить
+     */
+    public long tryAcquire(long now, long permits) {
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long next = Math.max(tat, now) + intervalNanos * permits;
+            long wait = next - now - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Расходует события безусловно, даже если их больше, чем доступно: расход, который становится известен
+     * только после события (например, токены ответа), уходит в долг и откладывает следующие события.
+     * @param now текущее System.nanoTime()
+     * @param permits количество событий
+     */
+    public void consume(long now, long permits) {
+        while (true) {
+            long tat = theoreticalArrival.get();
+            if (theoreticalArrival.compareAndSet(tat, Math.max(tat, now) + intervalNanos * permits)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Возвращает разрешенные ранее события, если они не понадобились.
+     * @param permits количество событий
+     */
+    public void refund(long permits) {
+        theoreticalArrival.addAndGet(-intervalNanos * permits);
+    }
+
+    /**
+     * Сообщает, через сколько можно будет разрешить одно событие, ничего не расходуя.
+     * @param now текущее System.nanoTime()
+     * @return 0 или время ожидания в наносекундах
+     */
+    public long waitNanos(long now) {
+        return Math.max(0, Math.max(theoreticalArrival.get(), now) + intervalNanos - now - toleranceNanos);
+    }
+
+    /**
+     * @param now текущее System.nanoTime()
+     * @return true, если ограничитель полностью восстановился и его состояние можно забыть
+     */
+    public boolean isIdle(long now) {
+        return theoreticalArrival.get() - now <= 0;
+    }
+}
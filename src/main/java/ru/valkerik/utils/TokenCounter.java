@@ -0,0 +1,44 @@
+package ru.valkerik.utils;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import ru.valkerik.model.request.Message;
+
+/**
+Класс TokenCounter локально подсчитывает токены сообщений тем же токенизатором, что использует модель OpenAI.
+Если модель неизвестна, используется кодировка cl100k_base. Результат подсчета сохраняется в самом сообщении,
+поэтому каждое сообщение токенизируется только один раз.
+*/
+public class TokenCounter {
+    // Служебные токены, которые модель добавляет к каждому сообщению (<|start|>роль\n ... <|end|>\n)
+    public static final int TOKENS_PER_MESSAGE = 4;
+    // Токены, которыми модель начинает ответ помощника
+    public static final int TOKENS_PER_REPLY = 3;
+
+    private final Encoding encoding;
+
+    public TokenCounter(String model) {
+        this.encoding = Encodings.newLazyEncodingRegistry()
+                .getEncodingForModel(model)
+                .orElseGet(() -> Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE));
+    }
+
+    /**
+     * Возвращает количество токенов сообщения, подсчитывая его только при первом обращении.
+     * @param message сообщение запроса
+     * @return количество токенов с учетом служебных
+     */
+    public int count(Message message) {
+        Integer tokens = message.getTokens();
+        if (tokens == null) {
+            tokens = TOKENS_PER_MESSAGE + count(message.getRole()) + count(message.getContent());
+            message.setTokens(tokens);
+        }
+        return tokens;
+    }
+
+    private int count(String text) {
+        return text == null ? 0 : encoding.countTokens(text);
+    }
+}
@@ -0,0 +1,238 @@
+package ru.valkerik.clients;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.valkerik.model.request.ChatRequest;
+import ru.valkerik.model.request.Message;
+import ru.valkerik.model.response.ChatResponse;
+import ru.valkerik.services.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Проверяет распределение вызовов между парами адрес и ключ на локальных серверах: пару с наименьшим числом
+ * выполняющихся вызовов, обход ключа после ответа 429 и отказ без ожидания при разомкнутых выключателях.
+ */
+class OpenAIApiClientTest {
+
+    private static final String ANSWER = "{\"id\":\"1\",\"object\":\"chat.completion\",\"created\":1,\"model\":\"m\","
+            + "\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"ok\"},\"finish_reason\":\"stop\"}],"
+            + "\"usage\":{\"prompt_tokens\":1,\"completion_tokens\":1,\"total_tokens\":2}}";
+
+    private final List<MockServer> servers = new ArrayList<>();
+    private final List<OpenAIApiClient> clients = new ArrayList<>();
+
+    @AfterEach
+    void stop() {
+        clients.forEach(client -> ReflectionTestUtils.invokeMethod(client, "dispose"));
+        servers.forEach(MockServer::stop);
+    }
+
+    @Test
+    void poolReportsOpenCircuitWhenEveryBreakerIsOpen() {
+        ApiEndpoint first = new ApiEndpoint("http://localhost/1", "k1", new CircuitBreaker(1, 30_000));
+        ApiEndpoint second = new ApiEndpoint("http://localhost/2", "k2", new CircuitBreaker(1, 30_000));
+        EndpointPool pool = new EndpointPool(List.of(first, second));
+        first.getBreaker().onFailure();
+        second.getBreaker().onFailure();
+
+        assertThatThrownBy(pool::acquire)
+                .isInstanceOfSatisfying(OpenAIApiException.class, e -> {
+                    assertThat(e.isCircuitOpen()).isTrue();
+                    assertThat(e.isRetryable()).isFalse();
+                    assertThat(e.getRetryAfterMillis()).isBetween(1L, 30_000L);
+                });
+    }
+
+    @Test
+    void sendsCallToEndpointWithFewestCallsInFlight() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        MockServer first = server(200, Map.of(), release);
+        MockServer second = server(200, Map.of(), release);
+        OpenAIApiClient client = client(first, second);
+
+        // ответы задерживаются, поэтому вызовы остаются выполняющимися и делятся поровну
+        List<CompletableFuture<ChatResponse>> calls = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            calls.add(client.getCompletionAsync(request("call " + i)));
+        }
+        assertThat(first.awaitCalls(2)).isTrue();
+        assertThat(second.awaitCalls(2)).isTrue();
+        release.countDown();
+
+        for (CompletableFuture<ChatResponse> call : calls) {
+            assertThat(call.get(5, TimeUnit.SECONDS).getChoices()).hasSize(1);
+        }
+        assertThat(first.calls.get()).isEqualTo(2);
+        assertThat(second.calls.get()).isEqualTo(2);
+    }
+
+    @Test
+    void routesAroundKeyThatGot429() throws Exception {
+        MockServer limited = server(429, Map.of(
+                "Retry-After", "30",
+                "x-ratelimit-remaining-requests", "0",
+                "x-ratelimit-reset-requests", "30s"), null);
+        MockServer healthy = server(200, Map.of(), null);
+        OpenAIApiClient client = client(limited, healthy);
+
+        // вызов, попавший на ключ с исчерпанным лимитом, повторяется через другой ключ, не дожидаясь 30 с
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            assertThat(client.getCompletionAsync(request("call " + i)).get(5, TimeUnit.SECONDS).getChoices()).hasSize(1);
+        }
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5_000);
+        assertThat(limited.calls.get()).isLessThanOrEqualTo(1);
+        assertThat(healthy.calls.get()).isEqualTo(6);
+    }
+
+    @Test
+    void failsOverWhenEndpointKeepsFailing() throws Exception {
+        MockServer failing = server(500, Map.of(), null);
+        MockServer healthy = server(200, Map.of(), null);
+        OpenAIApiClient client = client(failing, healthy);
+
+        // выключатель первой пары размыкается после первой ошибки, дальше вызовы идут только во вторую
+        for (int i = 0; i < 6; i++) {
+            assertThat(client.getCompletionAsync(request("call " + i)).get(5, TimeUnit.SECONDS).getChoices()).hasSize(1);
+        }
+        assertThat(failing.calls.get()).isLessThanOrEqualTo(1);
+        assertThat(healthy.calls.get()).isEqualTo(6);
+    }
+
+    @Test
+    void failsFastWhenEveryCircuitIsOpen() throws Exception {
+        // выключатель размыкается после первой неудачи и пробного вызова ждать 30 с
+        MockServer failing = server(500, Map.of(), null);
+        OpenAIApiClient client = client(failing);
+
+        // первая попытка получает 500 и размыкает выключатель, повтор отклоняется без ожидания
+        long start = System.nanoTime();
+        assertCircuitOpen(client.getCompletionAsync(request("first")));
+        // следующий вызов отклоняется, не обращаясь к API
+        assertCircuitOpen(client.getCompletionAsync(request("second")));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5_000);
+        assertThat(failing.calls.get()).isEqualTo(1);
+    }
+
+    private static void assertCircuitOpen(CompletableFuture<ChatResponse> future) {
+        assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .cause()
+                .isInstanceOfSatisfying(OpenAIApiException.class, e -> assertThat(e.isCircuitOpen()).isTrue());
+    }
+
+    private static ChatRequest request(String text) {
+        return new ChatRequest()
+                .withModel("gpt-3.5-turbo")
+                .withMaxTokens(10)
+                .withTemperature(0.0)
+                .withMessages(List.of(new Message().withRole("user").withContent(text)));
+    }
+
+    private MockServer server(int status, Map<String, String> headers, CountDownLatch release) throws IOException {
+        MockServer server = new MockServer(status, headers, release);
+        servers.add(server);
+        return server;
+    }
+
+    private OpenAIApiClient client(MockServer... endpoints) {
+        MockEnvironment env = new MockEnvironment();
+        for (int i = 0; i < endpoints.length; i++) {
+            env.setProperty("openai.endpoint." + (i + 1) + ".apikey", "key" + (i + 1));
+            env.setProperty("openai.endpoint." + (i + 1) + ".url", endpoints[i].url());
+        }
+        OpenAIApiClient client = new OpenAIApiClient();
+        ReflectionTestUtils.setField(client, "apiKey", "key");
+        ReflectionTestUtils.setField(client, "url", endpoints[0].url());
+        ReflectionTestUtils.setField(client, "coalescing", true);
+        ReflectionTestUtils.setField(client, "maxRetries", 3);
+        ReflectionTestUtils.setField(client, "retryBaseDelayMillis", 100L);
+        ReflectionTestUtils.setField(client, "maxRetryDelayMillis", 1_000L);
+        ReflectionTestUtils.setField(client, "deadlineSeconds", 120L);
+        ReflectionTestUtils.setField(client, "breakerFailures", 1);
+        ReflectionTestUtils.setField(client, "breakerOpenSeconds", 30L);
+        ReflectionTestUtils.setField(client, "mapper", new ObjectMapper());
+        ReflectionTestUtils.setField(client, "env", env);
+        ReflectionTestUtils.setField(client, "metrics", new Metrics());
+        ReflectionTestUtils.invokeMethod(client, "init");
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Локальный сервер, который на каждый вызов отвечает заданным статусом и заголовками и считает вызовы.
+     * Если задан release, ответ задерживается до его срабатывания.
+     */
+    private static final class MockServer {
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final AtomicInteger calls = new AtomicInteger();
+
+        MockServer(int status, Map<String, String> headers, CountDownLatch release) throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", exchange -> respond(exchange, status, headers, release));
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/chat/completions";
+        }
+
+        boolean awaitCalls(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (calls.get() < count && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            return calls.get() == count;
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        private void respond(HttpExchange exchange, int status, Map<String, String> headers, CountDownLatch release)
+                throws IOException {
+            calls.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            if (release != null) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = (status == 200 ? ANSWER : "{\"error\":{\"message\":\"mock " + status + "\"}}")
+                    .getBytes(StandardCharsets.UTF_8);
+            headers.forEach(exchange.getResponseHeaders()::add);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
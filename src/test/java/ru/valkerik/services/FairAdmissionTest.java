@@ -0,0 +1,73 @@
+package ru.valkerik.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Проверяет, что вызовы OpenAI допускаются по весам чатов и что при переполнении отказ получает самая длинная очередь.
+ */
+class FairAdmissionTest {
+
+    private static final long GROUP = -100L;
+    private static final long PRIVATE = 42L;
+
+    @Test
+    void admitsImmediatelyWhileThereArePermits() {
+        FairAdmission admission = new FairAdmission(2, 10, 4, 1);
+
+        assertThat(admission.acquire(GROUP, true)).isDone();
+        assertThat(admission.acquire(PRIVATE, false)).isDone();
+        assertThat(admission.acquire(PRIVATE, false)).isNotDone();
+        assertThat(admission.getWaiting()).isEqualTo(1);
+    }
+
+    @Test
+    void privateChatIsNotStuckBehindNoisyGroup() {
+        FairAdmission admission = new FairAdmission(1, 100, 4, 1);
+        admission.acquire(GROUP, true);
+        List<CompletableFuture<Void>> group = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            group.add(admission.acquire(GROUP, true));
+        }
+        CompletableFuture<Void> first = admission.acquire(PRIVATE, false);
+        CompletableFuture<Void> second = admission.acquire(PRIVATE, false);
+
+        // группа получает свое место, а приватный чат с весом 4 обгоняет почти всю ее очередь
+        admission.release();
+        admission.release();
+        admission.release();
+        assertThat(first).isDone();
+        assertThat(second).isDone();
+        assertThat(group.stream().filter(CompletableFuture::isDone).count()).isEqualTo(1);
+    }
+
+    @Test
+    void shedsNewestCallOfLongestQueue() {
+        FairAdmission admission = new FairAdmission(1, 3, 4, 1);
+        admission.acquire(GROUP, true);
+        CompletableFuture<Void> group1 = admission.acquire(GROUP, true);
+        CompletableFuture<Void> group2 = admission.acquire(GROUP, true);
+        CompletableFuture<Void> group3 = admission.acquire(GROUP, true);
+        // очередь полна, но отказ получает не пришедший последним приватный вызов, а группа
+        CompletableFuture<Void> private1 = admission.acquire(PRIVATE, false);
+
+        assertThat(private1).isNotDone();
+        assertThatThrownBy(group3::join).hasCauseInstanceOf(RejectedExecutionException.class);
+        assertThat(admission.getWaiting()).isEqualTo(3);
+
+        admission.release();
+        admission.release();
+        admission.release();
+        assertThat(group1).isDone();
+        assertThat(group2).isDone();
+        assertThat(private1).isDone();
+        assertThat(admission.getWaiting()).isZero();
+    }
+}
@@ -0,0 +1,137 @@
+package ru.valkerik.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Проверяет быструю и ограниченную очередь команд, порядок обновлений внутри чата и распределение потоков по весам
+ * чатов.
+ */
+class FairUpdateExecutorTest {
+
+    private static final long GROUP = -100L;
+    private static final long PRIVATE = 42L;
+    private static final long BUSY = 7L;
+
+    private FairUpdateExecutor executor;
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        executor.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void commandRunsWhileWorkersAreBusy() throws InterruptedException {
+        executor = new FairUpdateExecutor(1, 10, 4, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch command = new CountDownLatch(1);
+        executor.execute(BUSY, false, false, () -> await(release));
+
+        executor.execute(PRIVATE, false, true, command::countDown);
+
+        assertThat(command.await(5, TimeUnit.SECONDS)).isTrue();
+        release.countDown();
+    }
+
+    @Test
+    void commandLaneIsBoundedAndThreadsAreDaemons() throws InterruptedException {
+        executor = new FairUpdateExecutor(1, 1, 4, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch busy = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        executor.execute(BUSY, false, false, () -> {
+            busy.countDown();
+            await(release);
+        });
+        assertThat(busy.await(5, TimeUnit.SECONDS)).isTrue();
+        executor.execute(PRIVATE, false, true, () -> {
+            started.countDown();
+            await(release);
+            done.countDown();
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        // единственное место в очереди команд занято, поток команд и поток сообщений заняты
+        executor.execute(PRIVATE, false, true, done::countDown);
+        Thread producer = new Thread(() -> executor.execute(PRIVATE, false, true, done::countDown));
+        producer.start();
+        producer.join(200);
+        assertThat(producer.isAlive()).isTrue();
+
+        release.countDown();
+        producer.join(5000);
+        assertThat(producer.isAlive()).isFalse();
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("bot-"))
+                .allMatch(Thread::isDaemon)).isTrue();
+    }
+
+    @Test
+    void updatesOfOneChatRunInOrderOneAtATime() throws InterruptedException {
+        executor = new FairUpdateExecutor(4, 100, 4, 1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean running = new AtomicBoolean();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            int index = i;
+            executor.execute(PRIVATE, false, false, () -> {
+                if (!running.compareAndSet(false, true)) {
+                    overlapped.set(true);
+                }
+                order.add(index);
+                running.set(false);
+                done.countDown();
+            });
+        }
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(overlapped).isFalse();
+        assertThat(order).isSorted().hasSize(50);
+    }
+
+    @Test
+    void privateChatOvertakesNoisyGroup() throws InterruptedException {
+        executor = new FairUpdateExecutor(1, 100, 4, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(12);
+        // единственный поток занят, пока в очередь встают десять обновлений группы и два приватных
+        executor.execute(BUSY, false, false, () -> await(release));
+        for (int i = 0; i < 10; i++) {
+            executor.execute(GROUP, true, false, () -> {
+                order.add(GROUP);
+                done.countDown();
+            });
+        }
+        for (int i = 0; i < 2; i++) {
+            executor.execute(PRIVATE, false, false, () -> {
+                order.add(PRIVATE);
+                done.countDown();
+            });
+        }
+        release.countDown();
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        // приватный чат с весом 4 не ждет, пока выполнится вся очередь группы
+        assertThat(order.subList(0, 3).stream().filter(chat -> chat == PRIVATE).count()).isEqualTo(2);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
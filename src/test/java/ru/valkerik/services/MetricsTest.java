@@ -0,0 +1,34 @@
+package ru.valkerik.services;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Проверяет, что перцентили считаются по скользящему окну, а количество и сумма задержек накапливаются.
+ */
+class MetricsTest {
+
+    @Test
+    void percentilesForgetValuesOlderThanWindow() throws Exception {
+        Metrics metrics = new Metrics();
+        ReflectionTestUtils.setField(metrics, "windowSeconds", 1L);
+        metrics.recordNanos("stage", TimeUnit.MILLISECONDS.toNanos(500));
+
+        String scrape = metrics.scrape();
+        assertThat(scrape).contains("bot_stage_latency_max_seconds{stage=\"stage\"} 0.500");
+        assertThat(scrape).contains("bot_stage_latency_seconds_count{stage=\"stage\"} 1\n");
+
+        Thread.sleep(1_200);
+        metrics.recordNanos("stage", TimeUnit.MILLISECONDS.toNanos(2));
+
+        scrape = metrics.scrape();
+        // старое значение вышло из окна, но осталось в количестве и сумме
+        assertThat(scrape).contains("bot_stage_latency_max_seconds{stage=\"stage\"} 0.00200");
+        assertThat(scrape).contains("bot_stage_latency_seconds_count{stage=\"stage\"} 2\n");
+        assertThat(scrape).contains("bot_stage_latency_seconds_sum{stage=\"stage\"} 0.502");
+    }
+}
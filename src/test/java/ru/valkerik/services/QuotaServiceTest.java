@@ -0,0 +1,71 @@
+package ru.valkerik.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Проверяет, что отказ называет исчерпанный лимит и что отказ по лимиту чата не расходует лимит пользователя.
+ */
+class QuotaServiceTest {
+
+    private static final Long USER = 123_456_789L;
+    private static final Long OTHER_USER = 987_654_321L;
+    private static final Long CHAT = -100_123_456_789L;
+
+    private QuotaService quotas;
+
+    @AfterEach
+    void dispose() {
+        ReflectionTestUtils.invokeMethod(quotas, "dispose");
+    }
+
+    @Test
+    void reportsUserRequestLimit() {
+        quotas = quotas(2, 1000, 10, 1000);
+        assertThat(quotas.tryAcquire(USER, null)).isNull();
+        assertThat(quotas.tryAcquire(USER, null)).isNull();
+
+        QuotaService.Denial denial = quotas.tryAcquire(USER, null);
+        assertThat(denial.getLimit()).isEqualTo(QuotaService.Limit.USER_REQUESTS);
+        assertThat(denial.getWaitNanos()).isPositive();
+    }
+
+    @Test
+    void reportsUserTokenLimitBeforeRequestLimit() {
+        quotas = quotas(10, 1000, 10, 100_000);
+        quotas.charge(USER, null, 5000);
+
+        assertThat(quotas.tryAcquire(USER, null).getLimit()).isEqualTo(QuotaService.Limit.USER_TOKENS);
+    }
+
+    @Test
+    void reportsChatLimitsAndRefundsUserRequest() {
+        quotas = quotas(1, 1000, 1, 1000);
+        assertThat(quotas.tryAcquire(OTHER_USER, CHAT)).isNull();
+
+        // чат исчерпал лимит запросов, а единственный запрос пользователя возвращается ему
+        assertThat(quotas.tryAcquire(USER, CHAT).getLimit()).isEqualTo(QuotaService.Limit.CHAT_REQUESTS);
+        assertThat(quotas.tryAcquire(USER, null)).isNull();
+
+        quotas.charge(null, CHAT, 5000);
+        assertThat(quotas.tryAcquire(OTHER_USER, CHAT).getLimit()).isEqualTo(QuotaService.Limit.CHAT_TOKENS);
+    }
+
+    private static QuotaService quotas(int requestsPerMinute, long tokensPerDay,
+                                       int chatRequestsPerMinute, long chatTokensPerDay) {
+        QuotaService quotas = new QuotaService();
+        ReflectionTestUtils.setField(quotas, "enabled", true);
+        ReflectionTestUtils.setField(quotas, "requestsPerMinute", requestsPerMinute);
+        ReflectionTestUtils.setField(quotas, "tokensPerDay", tokensPerDay);
+        ReflectionTestUtils.setField(quotas, "chatRequestsPerMinute", chatRequestsPerMinute);
+        ReflectionTestUtils.setField(quotas, "chatTokensPerDay", chatTokensPerDay);
+        ReflectionTestUtils.setField(quotas, "env", new MockEnvironment());
+        ReflectionTestUtils.setField(quotas, "metrics", new Metrics());
+        ReflectionTestUtils.invokeMethod(quotas, "init");
+        return quotas;
+    }
+}
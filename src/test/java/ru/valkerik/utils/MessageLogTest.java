@@ -0,0 +1,84 @@
+package ru.valkerik.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Проверяет ограничения журнала и то, что снимок не меняется при последующих изменениях журнала.
+ */
+class MessageLogTest {
+
+    @Test
+    void trimsOldestBySizeAndTokensButKeepsLast() {
+        MessageLog<String> log = new MessageLog<>(3, 10, String::length);
+        log.addAll(List.of("aa", "bb", "cc", "dd"));
+        assertThat(log).containsExactly("bb", "cc", "dd");
+        assertThat(log.getTokens()).isEqualTo(6);
+
+        log.add("eeeeeeee");
+        assertThat(log).containsExactly("dd", "eeeeeeee");
+        assertThat(log.getTokens()).isEqualTo(10);
+
+        log.add("ffffffffffff");
+        assertThat(log).containsExactly("ffffffffffff");
+        assertThat(log.getTokens()).isEqualTo(12);
+    }
+
+    @Test
+    void snapshotIsUnchangedByAppendAndTrim() {
+        MessageLog<String> log = new MessageLog<>(4);
+        log.addAll(List.of("a", "b", "c", "d"));
+        List<String> snapshot = log.snapshot();
+
+        // каждое добавление вытесняет самый старый элемент, ячейки которого видит снимок
+        for (int i = 0; i < 20; i++) {
+            log.add("x" + i);
+        }
+        assertThat(snapshot).containsExactly("a", "b", "c", "d");
+        assertThat(log).containsExactly("x16", "x17", "x18", "x19");
+    }
+
+    @Test
+    void snapshotIsUnchangedByReplaceRangeAndClear() {
+        MessageLog<String> log = new MessageLog<>(10, 100, String::length);
+        log.addAll(List.of("a", "b", "c", "d", "e"));
+        List<String> snapshot = log.snapshot();
+
+        log.replaceRange(1, 4, "summary");
+        assertThat(log).containsExactly("a", "summary", "e");
+        assertThat(log.getTokens()).isEqualTo(9);
+        assertThat(snapshot).containsExactly("a", "b", "c", "d", "e");
+
+        List<String> replaced = log.snapshot();
+        log.clear();
+        assertThat(log).isEmpty();
+        assertThat(log.getTokens()).isZero();
+        assertThat(snapshot).containsExactly("a", "b", "c", "d", "e");
+        assertThat(replaced).containsExactly("a", "summary", "e");
+    }
+
+    @Test
+    void wrapsAroundAfterRelocation() {
+        MessageLog<Integer> log = new MessageLog<>(6);
+        // заполняем и прокручиваем кольцо, чтобы голова ушла далеко от начала массива
+        for (int i = 0; i < 13; i++) {
+            log.add(i);
+        }
+        List<Integer> pinned = log.snapshot();
+        // снимок заставляет журнал переехать, после чего кольцо нового массива тоже прокручивается
+        for (int i = 13; i < 40; i++) {
+            log.add(i);
+            List<Integer> expected = new ArrayList<>();
+            for (int j = Math.max(0, i - 5); j <= i; j++) {
+                expected.add(j);
+            }
+            assertThat(log).containsExactlyElementsOf(expected);
+        }
+        assertThat(pinned).containsExactly(7, 8, 9, 10, 11, 12);
+        assertThat(log.snapshot()).containsExactly(34, 35, 36, 37, 38, 39);
+    }
+}
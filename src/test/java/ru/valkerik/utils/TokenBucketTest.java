@@ -0,0 +1,57 @@
+package ru.valkerik.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Проверяет ограничитель на явно заданном времени: всплеск, восстановление, долг и возврат.
+ */
+class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void allowsBurstThenOneEventPerInterval() {
+        long now = System.nanoTime() + SECOND;
+        TokenBucket bucket = new TokenBucket(10, 1, TimeUnit.SECONDS, 3);
+
+        assertThat(bucket.tryAcquire(now)).isZero();
+        assertThat(bucket.tryAcquire(now)).isZero();
+        assertThat(bucket.tryAcquire(now)).isZero();
+        long wait = bucket.tryAcquire(now);
+        assertThat(wait).isEqualTo(SECOND / 10);
+
+        assertThat(bucket.tryAcquire(now + wait - 1)).isPositive();
+        assertThat(bucket.tryAcquire(now + wait)).isZero();
+    }
+
+    @Test
+    void consumeGoesIntoDebtAndRefundReturnsEvents() {
+        long now = System.nanoTime() + SECOND;
+        TokenBucket bucket = new TokenBucket(10, 1, TimeUnit.SECONDS, 5);
+
+        // расход больше всплеска уходит в долг
+        bucket.consume(now, 8);
+        assertThat(bucket.waitNanos(now)).isEqualTo(4 * SECOND / 10);
+        assertThat(bucket.tryAcquire(now)).isEqualTo(4 * SECOND / 10);
+        assertThat(bucket.isIdle(now)).isFalse();
+
+        bucket.refund(8);
+        assertThat(bucket.waitNanos(now)).isZero();
+        assertThat(bucket.tryAcquire(now)).isZero();
+        assertThat(bucket.isIdle(now + SECOND)).isTrue();
+    }
+
+    @Test
+    void acquiresSeveralPermitsAtOnce() {
+        long now = System.nanoTime() + SECOND;
+        TokenBucket bucket = new TokenBucket(100, 1, TimeUnit.SECONDS, 100);
+
+        assertThat(bucket.tryAcquire(now, 60)).isZero();
+        assertThat(bucket.tryAcquire(now, 60)).isEqualTo(20 * SECOND / 100);
+        assertThat(bucket.tryAcquire(now, 40)).isZero();
+    }
+}